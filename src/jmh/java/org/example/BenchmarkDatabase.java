@@ -0,0 +1,31 @@
+package org.example;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Properties;
+
+// an in-memory H2 database in MySQL mode standing in for the real one, so the benchmarks run
+// offline and in CI
+final class BenchmarkDatabase {
+    private static final PrintStream SILENT = new PrintStream(OutputStream.nullOutputStream());
+
+    private BenchmarkDatabase() {
+    }
+
+    static CustomDataSource dataSource(String name, int maxPoolSize) {
+        Properties props = new Properties();
+        props.setProperty("db.url", "jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1;NON_KEYWORDS=USER");
+        props.setProperty("db.username", "sa");
+        props.setProperty("db.password", "");
+        props.setProperty("db.driver", "org.h2.Driver");
+        props.setProperty("db.pool.maxSize", String.valueOf(maxPoolSize));
+        props.setProperty("db.pool.minIdle", String.valueOf(maxPoolSize));
+        props.setProperty("db.pool.statementCacheSize", "32");
+        return new CustomDataSource(props);
+    }
+
+    // EntityManager logs every statement, which would otherwise dominate the measurement
+    static void silenceLogging() {
+        System.setOut(SILENT);
+    }
+}
@@ -0,0 +1,76 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// get/put throughput of the caches shared by 8 threads, on a key space larger than the bounded
+// cache so it also has to evict. the IntKeyCache is called through its int overloads, the way
+// EntityManager uses it. see CacheFootprint for the memory side.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class CacheBenchmark {
+    private static final int KEYS = 20_000;
+
+    @Param({"custom", "bounded", "intkey"})
+    public String cacheType;
+
+    private Cache<Integer, String> cache;
+    private IntKeyCache<String> intKeyCache; // set for "intkey"
+
+    @Setup
+    public void setUp() {
+        switch (cacheType) {
+            case "custom":
+                cache = new CustomCache<>();
+                break;
+            case "bounded":
+                cache = new BoundedCache<>(KEYS / 2);
+                break;
+            default:
+                cache = intKeyCache = new IntKeyCache<>();
+        }
+        for (int i = 0; i < KEYS; i++)
+            cache.put(i, "value-" + i);
+    }
+
+    @Benchmark
+    public String get() {
+        return get(ThreadLocalRandom.current().nextInt(KEYS));
+    }
+
+    @Benchmark
+    public void put() {
+        int key = ThreadLocalRandom.current().nextInt(KEYS);
+        put(key, "value-" + key);
+    }
+
+    // 9 reads per write
+    @Benchmark
+    public String readMostly() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int key = random.nextInt(KEYS);
+        if (random.nextInt(10) == 0) {
+            put(key, "value-" + key);
+            return null;
+        }
+        return get(key);
+    }
+
+    private String get(int key) {
+        return intKeyCache != null ? intKeyCache.get(key) : cache.get(key);
+    }
+
+    private void put(int key, String value) {
+        if (intKeyCache != null)
+            intKeyCache.put(key, value);
+        else
+            cache.put(key, value);
+    }
+}
@@ -0,0 +1,62 @@
+package org.example;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+// heap retained per entry by each entity cache, not counting the entities themselves (every entry
+// holds the same value). not a JMH benchmark, it measures live heap after a full GC:
+//
+//   mvn -Pbenchmark compile && java -cp target/classes org.example.CacheFootprint [entries]
+public final class CacheFootprint {
+    private static final Object VALUE = new Object();
+
+    private CacheFootprint() {
+    }
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        System.out.printf("%-14s %12s %14s%n", "cache", "entries", "bytes/entry");
+        for (String type : new String[]{"custom", "bounded", "intkey"}) {
+            // once to warm up, once to measure
+            measure(type, entries);
+            double bytesPerEntry = measure(type, entries);
+            System.out.printf("%-14s %12d %14.1f%n", type, entries, bytesPerEntry);
+        }
+    }
+
+    private static double measure(String type, int entries) {
+        long before = usedHeap();
+        Cache<Integer, Object> cache = fill(type, entries);
+        long after = usedHeap();
+        if (cache.get(entries - 1) == null) // keeps the cache reachable until after the measurement
+            throw new IllegalStateException("entry missing");
+        return (double) (after - before) / entries;
+    }
+
+    private static Cache<Integer, Object> fill(String type, int entries) {
+        Cache<Integer, Object> cache;
+        switch (type) {
+            case "custom":
+                cache = new CustomCache<>();
+                break;
+            case "bounded":
+                cache = new BoundedCache<>(entries);
+                break;
+            default:
+                IntKeyCache<Object> intKeyCache = new IntKeyCache<>();
+                for (int i = 0; i < entries; i++)
+                    intKeyCache.put(i, VALUE);
+                return intKeyCache;
+        }
+        for (int i = 0; i < entries; i++)
+            cache.put(i, VALUE);
+        return cache;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
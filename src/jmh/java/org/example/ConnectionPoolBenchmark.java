@@ -0,0 +1,58 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+// borrow + return throughput of CustomDataSource with 1 to 64 threads competing for 8 connections
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionPoolBenchmark {
+    private CustomDataSource dataSource;
+
+    @Setup
+    public void setUp() {
+        dataSource = BenchmarkDatabase.dataSource("pool", 8);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        dataSource.closeAllConnections();
+    }
+
+    private Connection borrowAndReturn() throws SQLException {
+        Connection connection = dataSource.getConnection();
+        dataSource.returnConnection(connection);
+        return connection;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Connection threads1() throws SQLException {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Connection threads4() throws SQLException {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Connection threads16() throws SQLException {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Connection threads64() throws SQLException {
+        return borrowAndReturn();
+    }
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// EntityManager hot paths against H2: find served from the cache vs. from the database, and rows/sec
+// for inserting one entity per statement vs. insertAll's JDBC batches.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntityManagerBenchmark {
+    private static final int ROWS = 1000;
+    private static final int BATCH = 100;
+
+    private CustomDataSource dataSource;
+    private BoundedCache<Integer, Customer> cache;
+    private EntityManager<Customer> entityManager;
+    private int nextId;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkDatabase.silenceLogging();
+        dataSource = BenchmarkDatabase.dataSource("entity_manager", 4);
+        cache = new BoundedCache<>(ROWS * 2);
+        entityManager = new EntityManager<>(dataSource, cache);
+        entityManager.createTable(Customer.class);
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++)
+            customers.add(customer(i));
+        entityManager.insertAll(customers);
+    }
+
+    // keep the table at the seeded rows so insert throughput does not drift with table size
+    @Setup(Level.Iteration)
+    public void trimInserted() throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM customer WHERE customerId > " + ROWS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        dataSource.closeAllConnections();
+    }
+
+    private static Customer customer(int i) {
+        Customer customer = new Customer();
+        customer.setFirstName("first-" + i);
+        customer.setLastName("last-" + i);
+        return customer;
+    }
+
+    private int nextId() {
+        nextId = nextId % ROWS + 1;
+        return nextId;
+    }
+
+    @Benchmark
+    public Customer findCacheHit() throws Exception {
+        return entityManager.find(Customer.class, nextId());
+    }
+
+    @Benchmark
+    public Customer findCacheMiss() throws Exception {
+        int id = nextId();
+        cache.invalidate(id);
+        return entityManager.find(Customer.class, id);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void insertSingle() throws Exception {
+        for (int i = 0; i < BATCH; i++)
+            entityManager.insert(customer(i));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void insertBatch() throws Exception {
+        List<Customer> customers = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++)
+            customers.add(customer(i));
+        entityManager.insertAll(customers);
+    }
+}
@@ -0,0 +1,134 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Field;
+import java.sql.*;
+import java.util.concurrent.TimeUnit;
+
+// rows/sec for turning result set rows into entities (hydration) and entities into statement
+// parameters (dehydration). the "reflection" methods reproduce the per-row Field/getObject(name)
+// path EntityManager used before the accessor layer, the "methodHandle" methods use EntityMetadata
+// resolved by reflection, and the "accessor" methods the generated <Entity>_ metamodel.
+// hydrateOffHeap rebuilds the same rows from an OffHeapCache instead of a result set.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HydrationBenchmark {
+    private static final int ROWS = 1000;
+
+    @Param({"customer", "user"})
+    public String entity;
+
+    private Connection connection;
+    private EntityMetadata<Object> metadata;
+    private EntityMetadata<Object> reflective;
+    private PreparedStatement select;
+    private PreparedStatement insert;
+    private Object sample;
+    private OffHeapCache<Object> offHeap;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        Class<?> entityClass = entity.equals("customer") ? Customer.class : User.class;
+        metadata = EntityMetadata.of((Class<Object>) entityClass);
+        reflective = EntityMetadata.reflective((Class<Object>) entityClass);
+        connection = DriverManager.getConnection(
+                "jdbc:h2:mem:hydration_" + entity + ";MODE=MySQL;NON_KEYWORDS=USER");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(metadata.createTableSql());
+        }
+
+        insert = connection.prepareStatement(metadata.insertSql());
+        offHeap = new OffHeapCache<>((Class<Object>) entityClass, 16 << 20);
+        for (int i = 1; i <= ROWS; i++) {
+            Object row = metadata.newInstance();
+            for (ColumnMetadata column : metadata.columns())
+                column.set(row, column.type() == int.class ? (Object) i : column.name() + "-" + i);
+            metadata.bindInsert(insert, row);
+            insert.addBatch();
+            offHeap.put(i, row);
+            sample = row;
+        }
+        insert.executeBatch();
+        select = connection.prepareStatement(metadata.selectColumnsSql());
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void hydrateReflection(Blackhole blackhole) throws Exception {
+        Class<?> entityClass = metadata.entityClass();
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+                Object row = entityClass.getDeclaredConstructor().newInstance();
+                for (Field field : entityClass.getDeclaredFields()) {
+                    if (field.isAnnotationPresent(Column.class)) {
+                        Column column = field.getAnnotation(Column.class);
+                        field.setAccessible(true);
+                        field.set(row, rs.getObject(column.name()));
+                    }
+                }
+                blackhole.consume(row);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void hydrateMethodHandle(Blackhole blackhole) throws SQLException {
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next())
+                blackhole.consume(reflective.hydrate(rs));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void hydrateAccessor(Blackhole blackhole) throws SQLException {
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next())
+                blackhole.consume(metadata.hydrate(rs));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void hydrateOffHeap(Blackhole blackhole) {
+        for (int i = 1; i <= ROWS; i++)
+            blackhole.consume(offHeap.get(i));
+    }
+
+    @Benchmark
+    public void dehydrateReflection() throws Exception {
+        int parameterIndex = 1;
+        for (Field field : metadata.entityClass().getDeclaredFields()) {
+            if (field.isAnnotationPresent(Column.class)) {
+                field.setAccessible(true);
+                insert.setObject(parameterIndex++, field.get(sample));
+            }
+        }
+        insert.clearParameters();
+    }
+
+    @Benchmark
+    public void dehydrateMethodHandle() throws SQLException {
+        reflective.bindInsert(insert, sample);
+        insert.clearParameters();
+    }
+
+    @Benchmark
+    public void dehydrateAccessor() throws SQLException {
+        metadata.bindInsert(insert, sample);
+        insert.clearParameters();
+    }
+}
@@ -0,0 +1,45 @@
+package org.example;
+
+import java.lang.reflect.Field;
+
+// reads and writes an association field (the Reference or List itself). unlike a FieldAccessor it
+// has no column to read or bind: the foreign key column is mapped by a ColumnMetadata of its own.
+abstract class AssociationAccessor {
+
+    abstract Object get(Object entity);
+
+    abstract void set(Object entity, Object value);
+
+    // build an accessor for a field backed by method handles
+    static AssociationAccessor forField(Field field) {
+        FieldAccessor accessor = FieldAccessor.forField(field);
+        return new AssociationAccessor() {
+            @Override
+            Object get(Object entity) {
+                return accessor.get(entity);
+            }
+
+            @Override
+            void set(Object entity, Object value) {
+                accessor.set(entity, value);
+            }
+        };
+    }
+
+    // accessor for association `association` of a generated metamodel, no reflection involved
+    @SuppressWarnings("unchecked")
+    static AssociationAccessor forMetamodel(EntityMetamodel<?> metamodel, int association) {
+        EntityMetamodel<Object> entityMetamodel = (EntityMetamodel<Object>) metamodel;
+        return new AssociationAccessor() {
+            @Override
+            Object get(Object entity) {
+                return entityMetamodel.getAssociation(entity, association);
+            }
+
+            @Override
+            void set(Object entity, Object value) {
+                entityMetamodel.setAssociation(entity, association, value);
+            }
+        };
+    }
+}
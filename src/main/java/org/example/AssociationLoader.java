@@ -0,0 +1,201 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+// gives the entities hydrated by one query their lazy associations. the holders of an association are
+// grouped into batches of batchSize in the order they are attached: touching it on one entity loads it
+// for its whole batch with a single IN query, instead of one query per entity (the N+1 problem).
+// a holder keeps only its own batch reachable, and lets go of it once loaded, so an entity that
+// outlives the query (e.g. in the entity cache) holds on to at most batchSize - 1 others.
+final class AssociationLoader<T> {
+    private final EntityManager<?> entityManager;
+    private final EntityMetadata<T> metadata;
+    private final int batchSize;
+    private final boolean streaming;
+    private final Map<AssociationMetadata, List<Batch<?>>> batches = new HashMap<>();
+
+    // a streaming loader only keeps the batch being filled, so a stream does not pile up a holder for
+    // every row it has read; it cannot fetch() associations up front
+    AssociationLoader(EntityManager<?> entityManager, EntityMetadata<T> metadata, int batchSize, boolean streaming) {
+        this.entityManager = entityManager;
+        this.metadata = metadata;
+        this.batchSize = batchSize;
+        this.streaming = streaming;
+    }
+
+    // register the associations of a freshly hydrated or written entity. a list some loader attached
+    // already is kept, so attaching an entity again does not throw away what it has loaded.
+    @SuppressWarnings("unchecked")
+    T attach(T entity) {
+        for (AssociationMetadata association : metadata.associations()) {
+            if (association.isManyToOne()) {
+                Reference<Object> reference = (Reference<Object>) association.get(entity);
+                if (reference != null && !reference.isLoaded()) {
+                    Batch<Reference<Object>> batch = (Batch<Reference<Object>>) batch(association);
+                    reference.attach(batch);
+                    batch.add(reference);
+                }
+            } else if (!(association.get(entity) instanceof LazyList)) {
+                Batch<LazyList<Object>> batch = (Batch<LazyList<Object>>) batch(association);
+                LazyList<Object> list = new LazyList<>(entity, metadata.id(entity), entityManager, association, batch);
+                association.set(entity, list);
+                batch.add(list);
+            }
+        }
+        return entity;
+    }
+
+    // load `association` right away for every entity attached so far, a batch at a time
+    void fetch(AssociationMetadata association) {
+        if (streaming)
+            throw new IllegalStateException("a streaming loader cannot fetch associations up front");
+        for (Batch<?> batch : batches.getOrDefault(association, List.of()))
+            batch.loadAll();
+    }
+
+    // the batch being filled for `association`, a new one once the last is full
+    private Batch<?> batch(AssociationMetadata association) {
+        List<Batch<?>> batches = this.batches.computeIfAbsent(association, key -> new ArrayList<>());
+        Batch<?> batch = batches.isEmpty() ? null : batches.get(batches.size() - 1);
+        if (batch != null && !batch.isFull())
+            return batch;
+        // the fetch functions must not capture this loader, or a holder would keep every batch reachable
+        EntityManager<?> entityManager = this.entityManager;
+        batch = association.isManyToOne()
+                ? new Batch<Reference<Object>>(batchSize, Reference::isLoaded,
+                references -> loadReferences(entityManager, association, references))
+                : new Batch<LazyList<Object>>(batchSize, LazyList::isLoaded,
+                lists -> loadCollections(entityManager, association, lists));
+        if (streaming)
+            batches.clear();
+        batches.add(batch);
+        return batch;
+    }
+
+    private static void loadReferences(EntityManager<?> entityManager, AssociationMetadata association,
+                                       List<Reference<Object>> references) throws Exception {
+        @SuppressWarnings("unchecked")
+        EntityMetadata<Object> target = (EntityMetadata<Object>) association.target();
+        Set<Integer> ids = new LinkedHashSet<>();
+        for (Reference<Object> reference : references)
+            ids.add(reference.id());
+        Map<Integer, Object> found = new HashMap<>();
+        for (Object entity : entityManager.selectIn(target, target.idColumn(), ids))
+            found.put(target.id(entity), entity);
+        for (Reference<Object> reference : references)
+            reference.resolve(found.get(reference.id()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void loadCollections(EntityManager<?> entityManager, AssociationMetadata association,
+                                        List<LazyList<Object>> lists) throws Exception {
+        EntityMetadata<Object> target = (EntityMetadata<Object>) association.target();
+        ColumnMetadata foreignKey = association.foreignKey();
+        AssociationMetadata inverse = association.inverse();
+        Map<Integer, LazyList<Object>> byParent = new HashMap<>();
+        for (LazyList<Object> list : lists)
+            byParent.putIfAbsent(list.parentId(), list);
+        // read first: a write of children while they are selected leaves the lists outdated
+        long version = LazyList.version(target.entityClass());
+        Map<Integer, List<Object>> children = new HashMap<>();
+        for (Object child : entityManager.selectIn(target, foreignKey, byParent.keySet())) {
+            int parentId = (Integer) foreignKey.get(child);
+            children.computeIfAbsent(parentId, key -> new ArrayList<>()).add(child);
+            // the child's reference back to its parent needs no query of its own
+            Reference<Object> parent = (Reference<Object>) inverse.get(child);
+            if (parent != null && !parent.isLoaded())
+                parent.resolve(byParent.get(parentId).parent());
+        }
+        for (LazyList<Object> list : lists)
+            list.resolve(children.getOrDefault(list.parentId(), List.of()), version);
+    }
+
+    // read a list again whose elements were written since it was loaded, see LazyList
+    @SuppressWarnings("unchecked")
+    static void reload(EntityManager<?> entityManager, AssociationMetadata association, LazyList<?> list) {
+        try {
+            loadCollections(entityManager, association, List.of((LazyList<Object>) list));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Error loading an association", e);
+        }
+    }
+
+    // the not yet loaded holders (references or lists) of one association, at most batchSize of them
+    static final class Batch<H> {
+        private final int batchSize;
+        private final Predicate<H> isLoaded;
+        private final Fetch<H> fetch;
+        private final List<H> pending = new ArrayList<>();
+        private int added;
+
+        Batch(int batchSize, Predicate<H> isLoaded, Fetch<H> fetch) {
+            this.batchSize = batchSize;
+            this.isLoaded = isLoaded;
+            this.fetch = fetch;
+        }
+
+        synchronized void add(H holder) {
+            pending.add(holder);
+            added++;
+        }
+
+        // full once batchSize holders were added, even if some are loaded and gone by now
+        synchronized boolean isFull() {
+            return added >= batchSize;
+        }
+
+        // a holder loaded some other way, e.g. a reference back to the parent of a loaded list
+        synchronized void remove(H holder) {
+            pending.removeIf(pendingHolder -> pendingHolder == holder);
+        }
+
+        // load `requester` together with the other pending holders
+        void load(H requester) {
+            List<H> holders = new ArrayList<>();
+            holders.add(requester);
+            synchronized (this) {
+                for (H holder : pending) {
+                    if (holder != requester && !isLoaded.test(holder))
+                        holders.add(holder);
+                }
+                pending.clear();
+            }
+            run(holders);
+        }
+
+        void loadAll() {
+            List<H> holders = new ArrayList<>();
+            synchronized (this) {
+                for (H holder : pending) {
+                    if (!isLoaded.test(holder))
+                        holders.add(holder);
+                }
+                pending.clear();
+            }
+            if (!holders.isEmpty())
+                run(holders);
+        }
+
+        private void run(List<H> holders) {
+            try {
+                fetch.fetch(holders);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Error loading an association", e);
+            }
+        }
+    }
+
+    interface Fetch<H> {
+        void fetch(List<H> holders) throws Exception;
+    }
+}
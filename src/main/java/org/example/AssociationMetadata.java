@@ -0,0 +1,97 @@
+package org.example;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.List;
+
+// describes a @ManyToOne or @OneToMany field of an entity, resolved once with the entity metadata
+final class AssociationMetadata {
+    private final String name;
+    private final boolean manyToOne;
+    private final Class<?> targetClass;
+    private final AssociationAccessor accessor; // the Reference or List field itself
+    private final ColumnMetadata column; // many-to-one: the column holding the target's id
+    private final String mappedBy; // one-to-many: the @ManyToOne field of the target pointing back
+
+    private AssociationMetadata(String name, boolean manyToOne, Class<?> targetClass, AssociationAccessor accessor,
+                                ColumnMetadata column, String mappedBy) {
+        this.name = name;
+        this.manyToOne = manyToOne;
+        this.targetClass = targetClass;
+        this.accessor = accessor;
+        this.column = column;
+        this.mappedBy = mappedBy;
+    }
+
+    // a @ManyToOne field, stored through `column`
+    static AssociationMetadata manyToOne(Field field, ColumnMetadata column) {
+        return new AssociationMetadata(field.getName(), true, typeArgument(field, Reference.class),
+                AssociationAccessor.forField(field), column, null);
+    }
+
+    static AssociationMetadata oneToMany(Field field) {
+        return new AssociationMetadata(field.getName(), false, typeArgument(field, List.class),
+                AssociationAccessor.forField(field), null, field.getAnnotation(OneToMany.class).mappedBy());
+    }
+
+    // association `index` of a generated metamodel, `columns` being the entity's columns
+    static AssociationMetadata fromMetamodel(EntityMetamodel<?> metamodel, int index, List<ColumnMetadata> columns) {
+        EntityMetamodel.Association association = metamodel.associations().get(index);
+        return new AssociationMetadata(association.name, association.manyToOne, association.targetClass,
+                AssociationAccessor.forMetamodel(metamodel, index),
+                association.manyToOne ? columns.get(association.column) : null, association.mappedBy);
+    }
+
+    // Target of Reference<Target> / List<Target>
+    private static Class<?> typeArgument(Field field, Class<?> expectedType) {
+        Type type = field.getGenericType();
+        if (field.getType() != expectedType || !(type instanceof ParameterizedType)
+                || !(((ParameterizedType) type).getActualTypeArguments()[0] instanceof Class))
+            throw new RuntimeException("association " + field.getName() + " must be declared as "
+                    + expectedType.getSimpleName() + "<Entity>");
+        return (Class<?>) ((ParameterizedType) type).getActualTypeArguments()[0];
+    }
+
+    String name() {
+        return name;
+    }
+
+    boolean isManyToOne() {
+        return manyToOne;
+    }
+
+    Class<?> targetClass() {
+        return targetClass;
+    }
+
+    EntityMetadata<?> target() {
+        return EntityMetadata.of(targetClass);
+    }
+
+    ColumnMetadata column() {
+        return column;
+    }
+
+    // one-to-many: the column of the target table holding this entity's id. resolved on use, since
+    // the two entity classes refer to each other.
+    ColumnMetadata foreignKey() {
+        AssociationMetadata inverse = target().association(mappedBy);
+        if (!inverse.isManyToOne())
+            throw new RuntimeException(mappedBy + " of " + targetClass.getSimpleName() + " is not a @ManyToOne");
+        return inverse.column();
+    }
+
+    // one-to-many: the @ManyToOne of the target that points back to the owner of this list
+    AssociationMetadata inverse() {
+        return target().association(mappedBy);
+    }
+
+    Object get(Object entity) {
+        return accessor.get(entity);
+    }
+
+    void set(Object entity, Object value) {
+        accessor.set(entity, value);
+    }
+}
@@ -0,0 +1,174 @@
+package org.example;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// non-blocking facade over an EntityManager: every call returns a CompletableFuture right away and
+// runs on an executor. at most maxConcurrency calls run at once (by default the maximum size of the
+// pool writes go to, the primary's with a RoutingDataSource), the rest wait in a queue without holding
+// a thread, so thousands of callers cost a queue entry each instead of a blocked thread waiting for one
+// of a handful of connections.
+//
+// the calls run on other threads, so they are not part of a transaction open on the caller's thread.
+public class AsyncEntityManager<T> implements AutoCloseable {
+    private final EntityManager<T> entityManager;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final Semaphore permits;
+    private final Queue<QueuedCall<?>> queued = new ConcurrentLinkedQueue<>();
+
+    // runs on virtual threads when the JVM has them (Java 21+), otherwise on a fixed pool with one
+    // thread per connection
+    public AsyncEntityManager(EntityManager<T> entityManager) {
+        this(entityManager, defaultExecutor(writeConnections(entityManager)), true, writeConnections(entityManager));
+    }
+
+    public AsyncEntityManager(EntityManager<T> entityManager, Executor executor) {
+        this(entityManager, executor, false, writeConnections(entityManager));
+    }
+
+    public AsyncEntityManager(EntityManager<T> entityManager, Executor executor, int maxConcurrency) {
+        this(entityManager, executor, false, maxConcurrency);
+    }
+
+    private AsyncEntityManager(EntityManager<T> entityManager, Executor executor, boolean ownsExecutor,
+                               int maxConcurrency) {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("max concurrency must be positive");
+        this.entityManager = entityManager;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    // writes and transactions only run on the primary, so admitting calls for the replica pools as well
+    // would let more writes in than there are connections for them
+    private static int writeConnections(EntityManager<?> entityManager) {
+        PooledDataSource dataSource = entityManager.dataSource();
+        if (dataSource instanceof RoutingDataSource)
+            return ((RoutingDataSource) dataSource).getPrimary().getMaxPoolSize();
+        return dataSource.getMaxPoolSize();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so the code still
+    // compiles for Java 17
+    static ExecutorService defaultExecutor(int platformThreads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(platformThreads, runnable -> {
+                Thread thread = new Thread(runnable, "async-entity-manager-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public CompletableFuture<T> findAsync(Class<T> entityClass, int primaryKey) {
+        return submit(() -> entityManager.find(entityClass, primaryKey));
+    }
+
+    public CompletableFuture<List<T>> findAllAsync(Class<T> entityClass, Collection<Integer> ids) {
+        return submit(() -> entityManager.findAll(entityClass, ids));
+    }
+
+    // completes with the entity, whose generated id has been written back
+    public CompletableFuture<T> insertAsync(T entity) {
+        return submit(() -> {
+            entityManager.insert(entity);
+            return entity;
+        });
+    }
+
+    public CompletableFuture<Void> insertAllAsync(Collection<T> entities) {
+        return submit(() -> {
+            entityManager.insertAll(entities);
+            return null;
+        });
+    }
+
+    public CompletableFuture<T> updateAsync(T entity) {
+        return submit(() -> {
+            entityManager.update(entity);
+            return entity;
+        });
+    }
+
+    // run any work against the EntityManager under the same admission limit
+    public <R> CompletableFuture<R> submit(AsyncCall<R> call) {
+        QueuedCall<R> queuedCall = new QueuedCall<>(call);
+        queued.add(queuedCall);
+        dispatch();
+        return queuedCall.future;
+    }
+
+    // calls waiting for one of the maxConcurrency slots
+    public int getQueuedCalls() {
+        return queued.size();
+    }
+
+    // hand queued calls to the executor while slots are free. a finishing call frees its slot
+    // before dispatching again, so a call queued concurrently is never left behind.
+    private void dispatch() {
+        while (!queued.isEmpty() && permits.tryAcquire()) {
+            QueuedCall<?> call = queued.poll();
+            if (call == null) {
+                permits.release();
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        call.run();
+                    } finally {
+                        permits.release();
+                        dispatch();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                call.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    // shuts down the executor if this facade created it
+    @Override
+    public void close() {
+        if (ownsExecutor)
+            ((ExecutorService) executor).shutdown();
+    }
+
+    private static final class QueuedCall<R> {
+        final AsyncCall<R> call;
+        final CompletableFuture<R> future = new CompletableFuture<>();
+
+        QueuedCall(AsyncCall<R> call) {
+            this.call = call;
+        }
+
+        void run() {
+            try {
+                future.complete(call.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    // an EntityManager call that may throw, e.g. () -> em.find(Customer.class, 1)
+    @FunctionalInterface
+    public interface AsyncCall<R> {
+        R call() throws Exception;
+    }
+}
@@ -0,0 +1,324 @@
+package org.example;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// a Cache with a maximum size (or total weight), segmented-LRU eviction and optional expiry.
+// new entries start in a small probation segment and are only promoted to the protected segment
+// when they are read again, so a one-off scan over many rows cannot push the hot entries out.
+// keys are spread over independently locked segments to keep lock contention low.
+public class BoundedCache<K, V> implements Cache<K, V> {
+    private static final int MAX_SEGMENTS = 16;
+    private static final double PROTECTED_SHARE = 0.8;
+
+    // computes how much of the cache's capacity an entry uses
+    @FunctionalInterface
+    public interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    private final Segment[] segments;
+    private final Weigher<? super K, ? super V> weigher;
+    private final long expireAfterWriteNanos; // 0 = never
+    private final long expireAfterAccessNanos; // 0 = never
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadTime = new LongAdder();
+    private final SingleFlight<K, V> inFlightLoads = new SingleFlight<>();
+
+    // at most maximumSize entries, no expiry
+    public BoundedCache(long maximumSize) {
+        this(maximumSize, (key, value) -> 1, null, null);
+    }
+
+    // entries are evicted once their total weight exceeds maximumWeight. either duration may be null.
+    public BoundedCache(long maximumWeight, Weigher<? super K, ? super V> weigher,
+                        Duration expireAfterWrite, Duration expireAfterAccess) {
+        if (maximumWeight < 1)
+            throw new IllegalArgumentException("maximum weight must be positive");
+        this.weigher = weigher;
+        this.expireAfterWriteNanos = expireAfterWrite == null ? 0 : expireAfterWrite.toNanos();
+        this.expireAfterAccessNanos = expireAfterAccess == null ? 0 : expireAfterAccess.toNanos();
+
+        // small caches get a single segment so the bound stays exact
+        int segmentCount = (int) Math.min(MAX_SEGMENTS, Math.max(1, Long.highestOneBit(maximumWeight / 64)));
+        this.segments = newSegments(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            long segmentWeight = maximumWeight / segmentCount + (i < maximumWeight % segmentCount ? 1 : 0);
+            segments[i] = new Segment(segmentWeight);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Segment[] newSegments(int size) {
+        return (Segment[]) new BoundedCache.Segment[size];
+    }
+
+    private Segment segmentFor(Object key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (segments.length - 1)];
+    }
+
+    @Override
+    public V get(K key) {
+        V value = segmentFor(key).get(key);
+        if (value == null)
+            misses.increment();
+        else
+            hits.increment();
+        return value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        segmentFor(key).put(key, value);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return segmentFor(key).putIfAbsent(key, value);
+    }
+
+    // concurrent misses for the same key wait for one load instead of each running it
+    @Override
+    public V getOrLoad(K key, CacheLoader<? super K, ? extends V> loader) throws Exception {
+        Segment segment = segmentFor(key);
+        V value = segment.get(key);
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+        misses.increment();
+        return inFlightLoads.load(key, k -> {
+            // it may have been loaded by a flight that finished just before this one started
+            V loaded = segment.get(k);
+            if (loaded == null) {
+                long start = System.nanoTime();
+                loaded = loader.load(k);
+                recordLoad(System.nanoTime() - start);
+                // a put while the loader ran (e.g. by an update) holds a newer value than the load
+                if (loaded != null) {
+                    V newer = segment.putIfAbsent(k, loaded);
+                    if (newer != null)
+                        loaded = newer;
+                }
+            }
+            return loaded;
+        });
+    }
+
+    // the cached value, without counting a hit or miss and without promoting it: for checks that are
+    // not a use of the entry, so they leave its place in the eviction order alone
+    V peek(K key) {
+        return segmentFor(key).peek(key);
+    }
+
+    @Override
+    public void invalidate(K key) {
+        segmentFor(key).remove(key);
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    // number of entries currently cached
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    public CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), loads.sum(), loadTime.sum());
+    }
+
+    // report this cache's hits, misses, evictions and size as gauges named <name>.hits etc.
+    public void registerMetrics(MetricsRegistry registry, String name) {
+        registry.gauge(name + ".hits", hits::sum);
+        registry.gauge(name + ".misses", misses::sum);
+        registry.gauge(name + ".evictions", evictions::sum);
+        registry.gauge(name + ".size", this::size);
+    }
+
+    // record the time it took to load a missing value into the cache
+    void recordLoad(long nanos) {
+        loads.increment();
+        loadTime.add(nanos);
+    }
+
+    private long now() {
+        return expireAfterWriteNanos > 0 || expireAfterAccessNanos > 0 ? System.nanoTime() : 0;
+    }
+
+    private static final class Node<V> {
+        V value;
+        int weight;
+        long writeTime;
+        long accessTime;
+
+        Node(V value, int weight, long now) {
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+    }
+
+    private final class Segment {
+        // both maps are kept in LRU order, eldest first
+        private final LinkedHashMap<K, Node<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<K, Node<V>> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maximumWeight;
+        private final long maximumProtectedWeight;
+        private long probationWeight;
+        private long protectedWeight;
+
+        Segment(long maximumWeight) {
+            this.maximumWeight = maximumWeight;
+            this.maximumProtectedWeight = (long) (maximumWeight * PROTECTED_SHARE);
+        }
+
+        synchronized V get(K key) {
+            Node<V> node = protectedEntries.get(key);
+            boolean wasProtected = node != null;
+            if (node == null)
+                node = probation.get(key);
+            if (node == null)
+                return null;
+
+            long now = now();
+            if (isExpired(node, now)) {
+                removeNode(key, node, wasProtected);
+                evictions.increment();
+                return null;
+            }
+            node.accessTime = now;
+            if (!wasProtected)
+                promote(key, node);
+            return node.value;
+        }
+
+        synchronized V peek(K key) {
+            Node<V> node = protectedEntries.get(key);
+            if (node == null)
+                node = probation.get(key);
+            return node == null || isExpired(node, now()) ? null : node.value;
+        }
+
+        synchronized void put(K key, V value) {
+            int weight = weigher.weigh(key, value);
+            Node<V> existing = protectedEntries.get(key);
+            if (existing != null) {
+                protectedEntries.remove(key);
+                protectedWeight -= existing.weight;
+            } else if ((existing = probation.remove(key)) != null) {
+                probationWeight -= existing.weight;
+            }
+            if (weight > maximumWeight)
+                return; // would evict everything else, so don't cache it at all
+
+            Node<V> node = new Node<>(value, weight, now());
+            if (existing != null) {
+                // an overwrite counts as a use, so it goes straight to the protected segment
+                protectedEntries.put(key, node);
+                protectedWeight += weight;
+                demoteOverflow();
+            } else {
+                probation.put(key, node);
+                probationWeight += weight;
+            }
+            evictOverflow();
+        }
+
+        synchronized V putIfAbsent(K key, V value) {
+            V existing = get(key);
+            if (existing == null)
+                put(key, value);
+            return existing;
+        }
+
+        synchronized void remove(K key) {
+            Node<V> node = protectedEntries.remove(key);
+            if (node != null) {
+                protectedWeight -= node.weight;
+            } else if ((node = probation.remove(key)) != null) {
+                probationWeight -= node.weight;
+            }
+        }
+
+        synchronized void clear() {
+            probation.clear();
+            protectedEntries.clear();
+            probationWeight = 0;
+            protectedWeight = 0;
+        }
+
+        synchronized int size() {
+            return probation.size() + protectedEntries.size();
+        }
+
+        private boolean isExpired(Node<V> node, long now) {
+            return (expireAfterWriteNanos > 0 && now - node.writeTime >= expireAfterWriteNanos)
+                    || (expireAfterAccessNanos > 0 && now - node.accessTime >= expireAfterAccessNanos);
+        }
+
+        private void removeNode(K key, Node<V> node, boolean wasProtected) {
+            if (wasProtected) {
+                protectedEntries.remove(key);
+                protectedWeight -= node.weight;
+            } else {
+                probation.remove(key);
+                probationWeight -= node.weight;
+            }
+        }
+
+        // a second hit moves the entry from probation to the protected segment
+        private void promote(K key, Node<V> node) {
+            probation.remove(key);
+            probationWeight -= node.weight;
+            protectedEntries.put(key, node);
+            protectedWeight += node.weight;
+            demoteOverflow();
+        }
+
+        // the protected segment keeps its share; its least recently used entries get a second chance in probation
+        private void demoteOverflow() {
+            Iterator<Map.Entry<K, Node<V>>> eldest = protectedEntries.entrySet().iterator();
+            while (protectedWeight > maximumProtectedWeight && eldest.hasNext()) {
+                Map.Entry<K, Node<V>> entry = eldest.next();
+                eldest.remove();
+                protectedWeight -= entry.getValue().weight;
+                probation.put(entry.getKey(), entry.getValue());
+                probationWeight += entry.getValue().weight;
+            }
+        }
+
+        // evict from the probation segment first, the protected one only if probation is empty
+        private void evictOverflow() {
+            evictFrom(probation.entrySet().iterator(), false);
+            evictFrom(protectedEntries.entrySet().iterator(), true);
+        }
+
+        private void evictFrom(Iterator<Map.Entry<K, Node<V>>> eldest, boolean fromProtected) {
+            while (probationWeight + protectedWeight > maximumWeight && eldest.hasNext()) {
+                Node<V> node = eldest.next().getValue();
+                eldest.remove();
+                if (fromProtected)
+                    protectedWeight -= node.weight;
+                else
+                    probationWeight -= node.weight;
+                evictions.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.example;
+
+// file formats of BulkTransfer
+public enum BulkFormat {
+    // a header line with the column names, then one line per row. fields are quoted when they hold a
+    // comma, quote or line break (quotes doubled) and when they are an empty string; an empty unquoted
+    // field is NULL.
+    CSV,
+    // a header with the column names and types, then every row as a 4-byte length and the row in the
+    // binary form of RowCodec. smaller and faster to parse than CSV.
+    BINARY
+}
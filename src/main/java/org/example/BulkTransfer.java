@@ -0,0 +1,692 @@
+package org.example;
+
+import com.mysql.cj.jdbc.JdbcStatement;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// moves a whole table between the database and a file, for loading and dumping millions of rows:
+//
+//   BulkTransfer<Customer> transfer = new BulkTransfer<>(customerEntityManager, Customer.class);
+//   transfer.setProgressListener((rows, bytes) -> System.out.println(rows + " rows"));
+//   transfer.exportTo(Path.of("customers.bin"), BulkFormat.BINARY);
+//
+// export reads the table through forward-only cursors and writes it through a FileChannel, a
+// bufferSize buffer at a time. with parallelism > 1 the id range is split into that many slices, each
+// read on its own connection, and their buffers are appended as they fill (so rows are not in id order).
+//
+// import streams a CSV file and maps a binary one window by window, and inserts the rows in JDBC
+// batches of batchSize from up to parallelism threads, each on its own connection. ids are kept, a row
+// whose int id is 0 gets one from the database. every batch commits on its own, so a failure stops the
+// import and leaves the batches committed before it in the table. with MySQL add
+// rewriteBatchedStatements=true to db.url, so a batch is sent as one multi-row INSERT. a CSV file can
+// instead be streamed into MySQL's LOAD DATA LOCAL INFILE, see setLoadDataLocalInfile.
+//
+// both run on their own connections, outside any transaction, and bypass the entity cache. an import
+// evicts the ids it wrote from the entity cache, its snapshots and the second level cache after each
+// batch commits (everything after LOAD DATA, whose ids are not known), and invalidates the query cache
+// results over the table.
+public class BulkTransfer<T> {
+    private static final int BINARY_MAGIC = 0x4f524d42;
+    private static final int BINARY_VERSION = 1;
+    private static final int MAPPED_WINDOW = 256 << 20; // bytes of a binary file mapped at once
+
+    private final EntityManager<T> entityManager;
+    private final EntityMetadata<T> metadata;
+    private int parallelism = 4;
+    private int batchSize = 5000;
+    private int bufferSize = 1 << 20;
+    private ProgressListener progressListener = (rows, bytes) -> {
+    };
+    private boolean loadDataLocalInfile;
+
+    public BulkTransfer(EntityManager<T> entityManager, Class<T> entityClass) {
+        this.entityManager = entityManager;
+        this.metadata = EntityMetadata.of(entityClass);
+    }
+
+    // threads (and connections) used at once: id slices read by an export, batches inserted by an import
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+    }
+
+    // rows per JDBC batch and per commit on import
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size must be positive");
+        this.batchSize = batchSize;
+    }
+
+    // bytes buffered per thread between the file and the database
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 4096)
+            throw new IllegalArgumentException("buffer size must be at least 4 KB");
+        this.bufferSize = bufferSize;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener == null ? (rows, bytes) -> {
+        } : progressListener;
+    }
+
+    // import CSV into MySQL with one LOAD DATA LOCAL INFILE fed from the file, which is much faster
+    // than batches but needs allowLoadLocalInfile=true on db.url and ignores parallelism. the row count
+    // is only known at the end, until then progress reports 0 rows and the bytes sent. an empty field
+    // is read as NULL this way, even a quoted one. other databases and binary files use batches anyway.
+    public void setLoadDataLocalInfile(boolean loadDataLocalInfile) {
+        this.loadDataLocalInfile = loadDataLocalInfile;
+    }
+
+    // write every row of the table to `file`, replacing it, and return the number of rows
+    public long exportTo(Path file, BulkFormat format) throws Exception {
+        RowCodec<T> codec = format == BulkFormat.BINARY ? new RowCodec<>(metadata) : null;
+        List<int[]> slices = slices();
+        System.out.println("\nexporting " + metadata.tableName() + " table to " + file + " as " + format +
+                ", " + slices.size() + " slices");
+        long start = System.nanoTime();
+        Progress progress = new Progress();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.wrap(header(format));
+            while (header.hasRemaining())
+                channel.write(header);
+            progress.written(0, header.capacity());
+            List<ThrowingRunnable> tasks = new ArrayList<>();
+            for (int[] slice : slices)
+                tasks.add(() -> exportSlice(channel, slice, format, codec, progress));
+            runAll(tasks);
+        }
+        System.out.println("...\nexported " + progress.rows.get() + " rows (" + progress.bytes.get() + " bytes) in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms:)");
+        return progress.rows.get();
+    }
+
+    // insert every row of `file` into the table and return the number of rows
+    public long importFrom(Path file, BulkFormat format) throws Exception {
+        PooledDataSource dataSource = entityManager.dataSource();
+        if (TransactionContext.current(dataSource) != null)
+            throw new IllegalStateException("a bulk import commits batch by batch and cannot run inside a transaction");
+        System.out.println("\nimporting " + file + " as " + format + " into " + metadata.tableName() + " table");
+        long start = System.nanoTime();
+        Progress progress = new Progress();
+        if (format == BulkFormat.CSV && loadDataLocalInfile && isMySql(dataSource)) {
+            loadDataLocalInfile(file, progress);
+        } else {
+            if (loadDataLocalInfile && format == BulkFormat.CSV)
+                System.out.println("LOAD DATA LOCAL INFILE needs MySQL, importing in batches instead");
+            System.out.println("generated sql: " + metadata.insertSql());
+            try (Inserter inserter = new Inserter(progress)) {
+                if (format == BulkFormat.CSV)
+                    readCsv(file, inserter);
+                else
+                    readBinary(file, inserter);
+            }
+        }
+        entityManager.tableChanged(metadata);
+        System.out.println("...\nimported " + progress.rows.get() + " rows into " + metadata.tableName() + " table in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms:)");
+        return progress.rows.get();
+    }
+
+    // inclusive id ranges read by one export thread each; a single one holding null reads the whole table
+    private List<int[]> slices() throws Exception {
+        List<int[]> slices = new ArrayList<>();
+        if (parallelism == 1 || !metadata.hasId()) {
+            slices.add(null);
+            return slices;
+        }
+        String idColumn = metadata.idColumn().name();
+        String sql = "SELECT MIN(" + idColumn + "), MAX(" + idColumn + ") FROM " + metadata.tableName();
+        long min;
+        long max;
+        try (Connection connection = entityManager.dataSource().getReadConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            min = rs.getLong(1);
+            max = rs.getLong(2);
+            if (rs.wasNull()) { // an empty table
+                slices.add(null);
+                return slices;
+            }
+        }
+        long span = max - min + 1;
+        int count = (int) Math.min(parallelism, span);
+        for (int i = 0; i < count; i++)
+            slices.add(new int[]{(int) (min + span * i / count), (int) (min + span * (i + 1) / count - 1)});
+        return slices;
+    }
+
+    private void exportSlice(FileChannel channel, int[] slice, BulkFormat format, RowCodec<T> codec,
+                             Progress progress) throws Exception {
+        String sql = slice == null ? metadata.selectColumnsSql()
+                : metadata.selectColumnsSql() + " WHERE " + metadata.idColumn().name() + " BETWEEN ? AND ?";
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        StringBuilder line = new StringBuilder();
+        try (Connection connection = entityManager.dataSource().getReadConnection();
+             PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                     ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(entityManager.streamingFetchSize(connection));
+            if (slice != null) {
+                statement.setInt(1, slice[0]);
+                statement.setInt(2, slice[1]);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                int rows = 0; // in the buffer
+                while (rs.next()) {
+                    T entity = metadata.hydrate(rs);
+                    byte[] row = format == BulkFormat.CSV ? csvLine(entity, line) : codec.encode(entity);
+                    int length = (format == BulkFormat.BINARY ? Integer.BYTES : 0) + row.length;
+                    if (length > buffer.remaining()) {
+                        write(channel, buffer, rows, progress);
+                        rows = 0;
+                    }
+                    if (length > buffer.remaining()) { // a row larger than the buffer goes out on its own
+                        ByteBuffer large = ByteBuffer.allocate(length);
+                        if (format == BulkFormat.BINARY)
+                            large.putInt(row.length);
+                        large.put(row);
+                        write(channel, large, 1, progress);
+                        continue;
+                    }
+                    if (format == BulkFormat.BINARY)
+                        buffer.putInt(row.length);
+                    buffer.put(row);
+                    rows++;
+                }
+                write(channel, buffer, rows, progress);
+            }
+        }
+    }
+
+    // append the buffer to the file in one piece, slices write to the same channel
+    private void write(FileChannel channel, ByteBuffer buffer, int rows, Progress progress) throws IOException {
+        buffer.flip();
+        int bytes = buffer.remaining();
+        synchronized (channel) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        buffer.clear();
+        progress.written(rows, bytes);
+    }
+
+    private byte[] header(BulkFormat format) {
+        List<ColumnMetadata> columns = metadata.columns();
+        if (format == BulkFormat.CSV) {
+            StringBuilder line = new StringBuilder();
+            for (ColumnMetadata column : columns)
+                line.append(line.length() == 0 ? "" : ",").append(column.name());
+            return line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> names = new ArrayList<>();
+        int length = 3 * Integer.BYTES;
+        for (ColumnMetadata column : columns) {
+            byte[] name = column.name().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            length += RowCodec.lengthSize(name.length) + name.length + 1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(length);
+        header.putInt(BINARY_MAGIC).putInt(BINARY_VERSION).putInt(columns.size());
+        for (int i = 0; i < columns.size(); i++) {
+            RowCodec.writeLength(header, names.get(i).length);
+            header.put(names.get(i));
+            header.put((byte) (columns.get(i).type() == int.class ? 'I' : 'S'));
+        }
+        return header.array();
+    }
+
+    // a binary file must have been written for exactly the columns of this entity
+    private void checkBinaryHeader(ByteBuffer header, Path file) {
+        List<ColumnMetadata> columns = metadata.columns();
+        if (header.remaining() < 3 * Integer.BYTES || header.getInt() != BINARY_MAGIC)
+            throw new IllegalArgumentException(file + " is not a binary bulk file");
+        if (header.getInt() != BINARY_VERSION)
+            throw new IllegalArgumentException(file + " was written by another version");
+        boolean matches = header.getInt() == columns.size();
+        for (int i = 0; matches && i < columns.size(); i++) {
+            byte[] name = new byte[RowCodec.readLength(header)];
+            header.get(name);
+            char type = (char) header.get();
+            matches = new String(name, StandardCharsets.UTF_8).equalsIgnoreCase(columns.get(i).name())
+                    && type == (columns.get(i).type() == int.class ? 'I' : 'S');
+        }
+        if (!matches)
+            throw new IllegalArgumentException(file + " does not hold the columns " + metadata.columnNames() +
+                    " of " + metadata.tableName());
+    }
+
+    private byte[] csvLine(T entity, StringBuilder line) {
+        line.setLength(0);
+        for (ColumnMetadata column : metadata.columns()) {
+            if (column.index() > 0)
+                line.append(',');
+            Object value = column.get(entity);
+            if (value instanceof String)
+                appendCsv(line, (String) value);
+            else if (value != null)
+                line.append(value);
+        }
+        return line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // quoted when it could be misread: empty (an unquoted empty field is NULL), or holding a separator
+    private static void appendCsv(StringBuilder line, String value) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"')
+                line.append('"');
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    private void readCsv(Path file, Inserter inserter) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            CsvReader reader = new CsvReader(new InputStreamReader(
+                    new BufferedInputStream(Channels.newInputStream(channel), bufferSize), StandardCharsets.UTF_8));
+            List<String> fields = new ArrayList<>();
+            if (!reader.next(fields))
+                return; // an empty file
+            ColumnMetadata[] columns = new ColumnMetadata[fields.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = metadata.column(fields.get(i));
+                if (columns[i].type() != int.class && columns[i].type() != String.class)
+                    throw new IllegalArgumentException("column " + columns[i].name() + " of type " +
+                            columns[i].type().getName() + " cannot be read from CSV");
+            }
+            long line = 1;
+            while (reader.next(fields)) {
+                line++;
+                if (fields.size() == 1 && fields.get(0) == null && columns.length > 1)
+                    continue; // a blank line
+                if (fields.size() != columns.length)
+                    throw new IOException(file + " line " + line + " has " + fields.size() + " fields, the header has " +
+                            columns.length);
+                T entity = metadata.newInstance();
+                for (int i = 0; i < columns.length; i++) {
+                    String value = fields.get(i);
+                    if (value != null)
+                        columns[i].set(entity, columns[i].type() == int.class ? (Object) Integer.valueOf(value) : value);
+                }
+                inserter.add(entity, reader.bytesRead());
+            }
+            inserter.finish(channel.size());
+        }
+    }
+
+    private void readBinary(Path file, Inserter inserter) throws Exception {
+        RowCodec<T> codec = new RowCodec<>(metadata);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long windowStart = 0;
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(MAPPED_WINDOW, size));
+            checkBinaryHeader(window, file);
+            // a window ends wherever MAPPED_WINDOW does, a row cut off by it is read again from the next one
+            while (windowStart + window.position() < size) {
+                if (window.remaining() >= Integer.BYTES) {
+                    int length = window.getInt(window.position());
+                    if (length < 0 || length > MAPPED_WINDOW - Integer.BYTES)
+                        throw new IOException(file + " is damaged at byte " + (windowStart + window.position()));
+                    if (window.remaining() - Integer.BYTES >= length) {
+                        window.position(window.position() + Integer.BYTES);
+                        int end = window.position() + length;
+                        T entity = codec.decode(window);
+                        if (window.position() != end)
+                            throw new IOException(file + " is damaged at byte " + (windowStart + end - length));
+                        inserter.add(entity, windowStart + end);
+                        continue;
+                    }
+                }
+                if (windowStart + window.limit() == size)
+                    throw new IOException(file + " ends inside a row");
+                windowStart += window.position();
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAPPED_WINDOW, size - windowStart));
+            }
+            inserter.finish(size);
+        }
+    }
+
+    private void loadDataLocalInfile(Path file, Progress progress) throws Exception {
+        List<String> names = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            new CsvReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8)).next(names);
+        }
+        StringBuilder variables = new StringBuilder();
+        StringBuilder assignments = new StringBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            ColumnMetadata column = metadata.column(names.get(i));
+            variables.append(i == 0 ? "" : ", ").append("@c").append(i);
+            assignments.append(i == 0 ? "" : ", ").append(column.name()).append(" = NULLIF(@c").append(i).append(", '')");
+        }
+        // the file name is not used, the driver sends the stream set below instead
+        String sql = "LOAD DATA LOCAL INFILE 'bulk.csv' INTO TABLE " + metadata.tableName() +
+                " CHARACTER SET utf8mb4 FIELDS TERMINATED BY ',' OPTIONALLY ENCLOSED BY '\"' ESCAPED BY ''" +
+                " LINES TERMINATED BY '\\n' IGNORE 1 LINES (" + variables + ") SET " + assignments;
+        System.out.println("generated sql: " + sql);
+        try (Connection connection = entityManager.dataSource().getConnection();
+             Statement statement = connection.createStatement();
+             InputStream in = new ProgressInputStream(
+                     new BufferedInputStream(Files.newInputStream(file), bufferSize), progress)) {
+            statement.unwrap(JdbcStatement.class).setLocalInfileInputStream(in);
+            long rows = statement.executeLargeUpdate(sql);
+            entityManager.evictAll();
+            progress.committed(rows, 0);
+        }
+    }
+
+    private static boolean isMySql(PooledDataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            return "MySQL".equals(connection.getMetaData().getDatabaseProductName());
+        }
+    }
+
+    // insert one batch in one transaction on a connection of its own
+    private void insertBatch(List<T> rows) throws SQLException {
+        List<T> generatedId = new ArrayList<>();
+        List<T> explicitId = new ArrayList<>();
+        for (T entity : rows)
+            (metadata.needsGeneratedId(entity) ? generatedId : explicitId).add(entity);
+        try (Connection connection = entityManager.dataSource().getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                if (!explicitId.isEmpty()) {
+                    try (PreparedStatement statement = connection.prepareStatement(metadata.insertSql())) {
+                        for (T entity : explicitId) {
+                            metadata.bindInsert(statement, entity);
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                }
+                if (!generatedId.isEmpty()) {
+                    try (PreparedStatement statement = connection.prepareStatement(metadata.insertGeneratedIdSql())) {
+                        for (T entity : generatedId) {
+                            metadata.bindInsertGeneratedId(statement, entity);
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                }
+                connection.commit();
+                // the rows with a generated id are new, nothing can be cached for them
+                List<Integer> ids = new ArrayList<>(explicitId.size());
+                for (T entity : explicitId)
+                    ids.add(metadata.id(entity));
+                entityManager.evict(ids);
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    // run the tasks on parallelism threads, the first failure cancels the rest and is rethrown
+    private void runAll(List<ThrowingRunnable> tasks) throws Exception {
+        ExecutorService executor = newExecutor(Math.min(parallelism, tasks.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (ThrowingRunnable task : tasks) {
+                futures.add(executor.submit(() -> {
+                    task.run();
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                await(future);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(Future<?> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "bulk-transfer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+
+    // running totals, reported to the listener after every change
+    private final class Progress {
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        // an export buffer of `rows` rows and `bytes` bytes was written
+        void written(long rows, long bytes) {
+            progressListener.progress(this.rows.addAndGet(rows), this.bytes.addAndGet(bytes));
+        }
+
+        // an import batch of `rows` rows committed, read up to byte `position` of the file. batches may
+        // commit out of order, the position reported only moves forward
+        void committed(long rows, long position) {
+            progressListener.progress(this.rows.addAndGet(rows), bytes.accumulateAndGet(position, Math::max));
+        }
+    }
+
+    // hands full batches to the insert threads. at most 2 * parallelism batches are read ahead, so a
+    // slow database holds the reader back instead of the file piling up in memory.
+    private final class Inserter implements AutoCloseable {
+        private final Progress progress;
+        private final ExecutorService executor = newExecutor(parallelism);
+        private final Semaphore slots = new Semaphore(2 * parallelism);
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+        private List<T> batch = new ArrayList<>();
+
+        Inserter(Progress progress) {
+            this.progress = progress;
+        }
+
+        // queue a row read up to byte `position` of the file
+        void add(T entity, long position) throws Exception {
+            batch.add(entity);
+            if (batch.size() == batchSize)
+                submit(position);
+        }
+
+        // insert what is left and wait for every batch
+        void finish(long position) throws Exception {
+            if (!batch.isEmpty())
+                submit(position);
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            checkFailure();
+        }
+
+        private void submit(long position) throws Exception {
+            checkFailure();
+            List<T> rows = batch;
+            batch = new ArrayList<>(batchSize);
+            slots.acquire();
+            executor.execute(() -> {
+                try {
+                    if (failure.get() == null) {
+                        insertBatch(rows);
+                        progress.committed(rows.size(), position);
+                    }
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+
+        private void checkFailure() throws Exception {
+            Exception e = failure.get();
+            if (e != null)
+                throw e;
+        }
+
+        // after a read error the batches already queued still finish, so the committed rows are known
+        @Override
+        public void close() throws InterruptedException {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // counts the bytes handed to LOAD DATA LOCAL INFILE
+    private final class ProgressInputStream extends FilterInputStream {
+        private final Progress progress;
+
+        ProgressInputStream(InputStream in, Progress progress) {
+            super(in);
+            this.progress = progress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                progress.written(0, 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                progress.written(0, n);
+            return n;
+        }
+    }
+
+    // reads CSV records as written by exportTo: quoted fields may hold commas, line breaks and doubled
+    // quotes, an empty unquoted field is NULL, lines end with \n or \r\n
+    private static final class CsvReader {
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private int position;
+        private int limit;
+        private long bytesRead; // UTF-8 bytes of the chars returned by read(), the reader itself reads ahead
+        private final StringBuilder field = new StringBuilder();
+
+        CsvReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        // the fields of the next record (null for NULL), false at the end of the input
+        boolean next(List<String> fields) throws IOException {
+            fields.clear();
+            int c = read();
+            if (c < 0)
+                return false;
+            while (true) {
+                field.setLength(0);
+                boolean quoted = c == '"';
+                if (quoted) {
+                    while (true) {
+                        c = read();
+                        if (c < 0)
+                            throw new IOException("a quoted CSV field is not closed");
+                        if (c == '"' && (c = read()) != '"')
+                            break;
+                        field.append((char) c);
+                    }
+                    if (c >= 0 && c != ',' && c != '\n' && c != '\r')
+                        throw new IOException("unexpected '" + (char) c + "' after a quoted CSV field");
+                } else {
+                    while (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                        field.append((char) c);
+                        c = read();
+                    }
+                }
+                fields.add(quoted || field.length() > 0 ? field.toString() : null);
+                if (c == ',') {
+                    c = read();
+                    continue;
+                }
+                if (c == '\r' && peek() == '\n')
+                    read();
+                return true;
+            }
+        }
+
+        // the bytes of the file parsed so far, including the header
+        long bytesRead() {
+            return bytesRead;
+        }
+
+        private int read() throws IOException {
+            if (position == limit && !fill())
+                return -1;
+            char c = buffer[position++];
+            // a surrogate pair is 4 bytes, 2 per char
+            bytesRead += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+            return c;
+        }
+
+        private int peek() throws IOException {
+            if (position == limit && !fill())
+                return -1;
+            return buffer[position];
+        }
+
+        private boolean fill() throws IOException {
+            int n = reader.read(buffer);
+            if (n <= 0)
+                return false;
+            position = 0;
+            limit = n;
+            return true;
+        }
+    }
+}
@@ -5,4 +5,30 @@ public interface Cache<K, V> {
     void put(K key, V value);
     void invalidate(K key);
     void clear();
+
+    // cache `value` unless the key already has a value, and return that one (null when `value` was
+    // cached). this default is not atomic, implementations should make it so.
+    default V putIfAbsent(K key, V value) {
+        V existing = get(key);
+        if (existing == null)
+            put(key, value);
+        return existing;
+    }
+
+    // return the cached value, or load, cache and return it. a null result is not cached, and neither
+    // is a loaded value when the key was put while the loader ran: that value is newer and is returned
+    // instead. implementations should let concurrent misses for the same key share a single load;
+    // this default does not, it only checks the cache before loading.
+    default V getOrLoad(K key, CacheLoader<? super K, ? extends V> loader) throws Exception {
+        V value = get(key);
+        if (value == null) {
+            value = loader.load(key);
+            if (value != null) {
+                V newer = putIfAbsent(key, value);
+                if (newer != null)
+                    value = newer;
+            }
+        }
+        return value;
+    }
 }
@@ -0,0 +1,7 @@
+package org.example;
+
+// loads the value for a key that is missing from a cache, e.g. with a database query
+@FunctionalInterface
+public interface CacheLoader<K, V> {
+    V load(K key) throws Exception;
+}
@@ -0,0 +1,56 @@
+package org.example;
+
+// point-in-time snapshot of a cache's counters
+public final class CacheStats {
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long loadCount;
+    private final long totalLoadTimeNanos;
+
+    public CacheStats(long hitCount, long missCount, long evictionCount, long loadCount, long totalLoadTimeNanos) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.loadCount = loadCount;
+        this.totalLoadTimeNanos = totalLoadTimeNanos;
+    }
+
+    public long hitCount() {
+        return hitCount;
+    }
+
+    public long missCount() {
+        return missCount;
+    }
+
+    public double hitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    // entries removed because the cache was full or they expired
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    // values loaded into the cache on a miss
+    public long loadCount() {
+        return loadCount;
+    }
+
+    public long totalLoadTimeNanos() {
+        return totalLoadTimeNanos;
+    }
+
+    public double averageLoadPenaltyNanos() {
+        return loadCount == 0 ? 0.0 : (double) totalLoadTimeNanos / loadCount;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hitCount + ", misses=" + missCount + ", hitRate=" + String.format("%.3f", hitRate())
+                + ", evictions=" + evictionCount + ", loads=" + loadCount
+                + ", avgLoadMs=" + String.format("%.3f", averageLoadPenaltyNanos() / 1_000_000) + "}";
+    }
+}
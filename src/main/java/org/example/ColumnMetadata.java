@@ -0,0 +1,86 @@
+package org.example;
+
+import java.lang.reflect.Field;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// describes a single @Column field of an entity, resolved once when the entity metadata is built
+final class ColumnMetadata {
+    private final String name;
+    private final Class<?> type;
+    private final FieldAccessor accessor;
+    private final boolean id;
+    private final int index;
+
+    ColumnMetadata(Field field, int index) {
+        this.name = field.getAnnotation(Column.class).name();
+        this.type = field.getType();
+        this.id = field.isAnnotationPresent(Id.class);
+        this.index = index;
+        // resolved once here instead of on every insert/find/update
+        this.accessor = FieldAccessor.forField(field);
+    }
+
+    // the int column behind a @ManyToOne Reference field, read and written as the target's id
+    static ColumnMetadata foreignKey(Field field, int index) {
+        return new ColumnMetadata(field.getAnnotation(ManyToOne.class).column(), int.class,
+                FieldAccessor.forReference(field), index);
+    }
+
+    // column `index` of a generated metamodel
+    static ColumnMetadata fromMetamodel(EntityMetamodel<?> metamodel, int index) {
+        return new ColumnMetadata(metamodel.columnName(index), metamodel.columnType(index),
+                index == metamodel.idColumn(), FieldAccessor.forMetamodel(metamodel, index), index);
+    }
+
+    private ColumnMetadata(String name, Class<?> type, FieldAccessor accessor, int index) {
+        this(name, type, false, accessor, index);
+    }
+
+    private ColumnMetadata(String name, Class<?> type, boolean id, FieldAccessor accessor, int index) {
+        this.name = name;
+        this.type = type;
+        this.id = id;
+        this.index = index;
+        this.accessor = accessor;
+    }
+
+    String name() {
+        return name;
+    }
+
+    Class<?> type() {
+        return type;
+    }
+
+    boolean isId() {
+        return id;
+    }
+
+    // zero-based position of the column in EntityMetadata#columns()
+    int index() {
+        return index;
+    }
+
+    FieldAccessor accessor() {
+        return accessor;
+    }
+
+    Object get(Object entity) {
+        return accessor.get(entity);
+    }
+
+    void set(Object entity, Object value) {
+        accessor.set(entity, value);
+    }
+
+    // read this column from the current row by position
+    void read(ResultSet rs, int columnIndex, Object entity) throws SQLException {
+        accessor.read(rs, columnIndex, entity);
+    }
+
+    void bind(PreparedStatement statement, int parameterIndex, Object entity) throws SQLException {
+        accessor.bind(statement, parameterIndex, entity);
+    }
+}
@@ -0,0 +1,8 @@
+package org.example;
+
+import java.sql.Connection;
+
+// work that needs a connection: the one of the current transaction, or one borrowed from the pool
+interface ConnectionCallback<R> {
+    R doWithConnection(Connection connection) throws Exception;
+}
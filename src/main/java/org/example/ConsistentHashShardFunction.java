@@ -0,0 +1,45 @@
+package org.example;
+
+import java.util.Arrays;
+
+// a hash ring: `points` points per shard, an id belongs to the shard of the first point at or after
+// its hash. the points are derived from the shard number alone, so every process builds the same ring.
+final class ConsistentHashShardFunction implements ShardFunction {
+    private final long[] points; // sorted
+    private final int[] owners; // owners[i] is the shard of points[i]
+
+    ConsistentHashShardFunction(int shards, int pointsPerShard) {
+        if (shards < 1 || pointsPerShard < 1)
+            throw new IllegalArgumentException("need at least one shard and one point per shard");
+        int count = shards * pointsPerShard;
+        long[][] ring = new long[count][];
+        for (int shard = 0; shard < shards; shard++) {
+            for (int i = 0; i < pointsPerShard; i++)
+                // the complement has its high bits set, so a point never hashes the same value as an int id
+                ring[shard * pointsPerShard + i] = new long[]{mix(~(((long) shard << 32) | i)), shard};
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[count];
+        this.owners = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+    }
+
+    @Override
+    public int shardFor(int id) {
+        int index = Arrays.binarySearch(points, mix(id));
+        if (index < 0)
+            index = -index - 1; // first point after the hash
+        return owners[index == points.length ? 0 : index];
+    }
+
+    // splitmix64 finalizer, spreads neighbouring ids over the whole ring
+    private static long mix(long value) {
+        value += 0x9E3779B97F4A7C15L;
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -4,6 +4,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public class CustomCache<K, V> implements Cache<K, V> {
     private ConcurrentHashMap<K, V> cache = new ConcurrentHashMap<>();
+    private final SingleFlight<K, V> loads = new SingleFlight<>();
 
     @Override
     public V get(K key) {
@@ -15,6 +16,33 @@ public class CustomCache<K, V> implements Cache<K, V> {
         cache.put(key, value);
     }
 
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return cache.putIfAbsent(key, value);
+    }
+
+    // concurrent misses for the same key wait for one load instead of each running it
+    @Override
+    public V getOrLoad(K key, CacheLoader<? super K, ? extends V> loader) throws Exception {
+        V value = cache.get(key);
+        if (value != null)
+            return value;
+        return loads.load(key, k -> {
+            // it may have been loaded by a flight that finished just before this one started
+            V loaded = cache.get(k);
+            if (loaded == null) {
+                loaded = loader.load(k);
+                // a put while the loader ran (e.g. by an update) holds a newer value than the load
+                if (loaded != null) {
+                    V newer = cache.putIfAbsent(k, loaded);
+                    if (newer != null)
+                        loaded = newer;
+                }
+            }
+            return loaded;
+        });
+    }
+
     @Override
     public void invalidate(K key) {
         cache.remove(key);
@@ -1,6 +1,5 @@
 package org.example;
 
-import javax.sql.DataSource;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -8,52 +7,213 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class CustomDataSource implements DataSource {
+public class CustomDataSource implements PooledDataSource {
+    private static final Logger LOGGER = Logger.getLogger(CustomDataSource.class.getName());
+
     private String url;
     private String username;
     private String password;
     private String driver;
     private PrintWriter logWriter;
     private int loginTimeout;
-    private final int maxPoolSize = 5; // Maximum number of connections in the pool
-    // a type of queue in Java that is thread-safe
-    public BlockingQueue<Connection> connectionPool = new ArrayBlockingQueue<>(maxPoolSize);
+    private int maxPoolSize; // Maximum number of connections in the pool
+    private int minIdle; // Connections opened up front and kept around
+    private long acquireTimeoutMillis; // How long getConnection() waits for a free connection
+    private long validationIdleNanos; // Connections idle for longer than this are checked before use
+    private long leakDetectionNanos; // Report connections borrowed for longer than this, 0 = off
+    private String initMode; // How the first minIdle connections are opened: sequential, parallel or lazy
+    private long keepaliveNanos; // Idle connections are pinged in the background after this long
+    private long maxLifetimeNanos; // Connections older than this are retired, 0 = never
+    private int statementCacheSize; // Prepared statements kept open per connection, 0 = off
+    private String poolName; // Prefix of the pool's metrics
+    private long longWaitNanos; // getConnection() waits longer than this are recorded as JFR events
+
+    // idle connections, most recently returned first so hot connections are reused.
+    // borrow and return are lock-free; the semaphore only blocks when the pool is exhausted.
+    private final ConcurrentLinkedDeque<PooledConnection> idleConnections = new ConcurrentLinkedDeque<>();
+    private final Set<PooledConnection> allConnections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger threadsAwaiting = new AtomicInteger();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private MetricsRegistry.Histogram acquireWait; // nanoseconds getConnection() waited for a free connection
+    private Semaphore permits;
+    private ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
 
     public CustomDataSource() {
-        loadProperties(); // Load database connection properties
+        this(loadProperties()); // Load database connection properties
+    }
+
+    public CustomDataSource(Properties props) {
+        configure(props);
         // Ensure the JDBC driver class is loaded
         try {
             Class.forName(driver);
         } catch (ClassNotFoundException e) {
             throw new RuntimeException("Failed to load JDBC driver", e);
         }
+        this.permits = new Semaphore(maxPoolSize, true);
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "custom-data-source-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        setMetricsRegistry(MetricsRegistry.defaultRegistry());
         initializeConnectionPool(); // Initialize the connection pool
+
+        // keepalive, eviction and refilling run here so getConnection() never has to reconnect
+        long keepaliveMillis = TimeUnit.NANOSECONDS.toMillis(keepaliveNanos);
+        housekeeper.scheduleWithFixedDelay(this::maintainPool, keepaliveMillis, keepaliveMillis, TimeUnit.MILLISECONDS);
+        if (leakDetectionNanos > 0) {
+            long period = Math.max(TimeUnit.NANOSECONDS.toMillis(leakDetectionNanos) / 2, 100);
+            housekeeper.scheduleWithFixedDelay(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        }
     }
 
     // Load database connection properties from a properties file
-    private void loadProperties() {
+    static Properties loadProperties() {
         Properties props = new Properties();
         try (FileInputStream fis = new FileInputStream("src/main/resources/applications.properties")) {
             props.load(fis);
-            this.url = props.getProperty("db.url");
-            this.username = props.getProperty("db.username");
-            this.password = props.getProperty("db.password");
-            this.driver = props.getProperty("db.driver");
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return props;
+    }
+
+    private void configure(Properties props) {
+        this.url = props.getProperty("db.url");
+        this.username = props.getProperty("db.username");
+        this.password = props.getProperty("db.password");
+        this.driver = props.getProperty("db.driver");
+        // lets MySQL Connector/J rewrite JDBC batches into multi-row statements
+        if (Boolean.parseBoolean(props.getProperty("db.rewriteBatchedStatements", "false"))
+                && url.startsWith("jdbc:mysql:") && !url.contains("rewriteBatchedStatements"))
+            this.url = url + (url.contains("?") ? "&" : "?") + "rewriteBatchedStatements=true";
+
+        this.maxPoolSize = Integer.parseInt(props.getProperty("db.pool.maxSize", "5"));
+        this.minIdle = Math.min(Integer.parseInt(props.getProperty("db.pool.minIdle", "0")), maxPoolSize);
+        this.acquireTimeoutMillis = Long.parseLong(props.getProperty("db.pool.acquireTimeoutMs", "30000"));
+        this.validationIdleNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(props.getProperty("db.pool.validationIdleMs", "5000")));
+        this.leakDetectionNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(props.getProperty("db.pool.leakDetectionMs", "0")));
+        this.initMode = props.getProperty("db.pool.initMode", "parallel");
+        this.keepaliveNanos = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(Long.parseLong(props.getProperty("db.pool.keepaliveMs", "30000")), 100));
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(props.getProperty("db.pool.maxLifetimeMs", "1800000")));
+        this.statementCacheSize = Integer.parseInt(props.getProperty("db.pool.statementCacheSize", "0"));
+        this.poolName = props.getProperty("db.pool.name", "default");
+        this.longWaitNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(props.getProperty("db.pool.longWaitMs", "100")));
+        if (maxPoolSize < 1)
+            throw new IllegalArgumentException("db.pool.maxSize must be at least 1");
     }
 
-    // Initialize the connection pool with a set number of connections
+    // Open the minimum number of idle connections, the rest are created on demand
     private void initializeConnectionPool() {
-        for (int i = 0; i < maxPoolSize; i++)
-            connectionPool.add(createNewConnection()); // Create and add new connections to the pool
+        switch (initMode) {
+            case "sequential":
+                for (int i = 0; i < minIdle; i++)
+                    idleConnections.offerLast(createPooledConnection()); // Create and add new connections to the pool
+                break;
+            case "parallel":
+                openInParallel();
+                break;
+            case "lazy":
+                // return right away and let the housekeeper open the connections
+                housekeeper.execute(this::fillPool);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown db.pool.initMode: " + initMode);
+        }
+    }
 
+    // open all minIdle connections at once, so startup waits for one connect instead of minIdle of them
+    private void openInParallel() {
+        if (minIdle == 0)
+            return;
+        ExecutorService opener = Executors.newFixedThreadPool(Math.min(minIdle, 8));
+        try {
+            List<Future<PooledConnection>> connections = new ArrayList<>();
+            for (int i = 0; i < minIdle; i++)
+                connections.add(opener.submit(this::createPooledConnection));
+            for (Future<PooledConnection> connection : connections)
+                idleConnections.offerLast(connection.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while opening the connection pool", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error creating a new database connection", e.getCause());
+        } finally {
+            opener.shutdown();
+        }
+    }
+
+    // top the pool up to minIdle connections, runs on the housekeeper thread
+    private void fillPool() {
+        while (!closed && allConnections.size() < minIdle) {
+            try {
+                idleConnections.offerLast(createPooledConnection());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "could not open a pooled connection, retrying on the next run", e);
+                return;
+            }
+        }
+    }
+
+    // runs every db.pool.keepaliveMs: pings connections that have been idle for a while, drops dead
+    // ones, ones older than db.pool.maxLifetimeMs and ones beyond maxPoolSize, then opens replacements
+    private void maintainPool() {
+        long now = System.nanoTime();
+        for (PooledConnection pooledConnection : allConnections) {
+            boolean expired = isExpired(pooledConnection, now);
+            boolean stale = now - pooledConnection.lastAccessed() > keepaliveNanos;
+            if ((!expired && !stale)
+                    || !pooledConnection.compareAndSetState(PooledConnection.IDLE, PooledConnection.RESERVED))
+                continue; // fresh, or in use and handled when it is returned
+            idleConnections.remove(pooledConnection);
+            if (expired || isSurplus() || !isValid(pooledConnection.physical())) {
+                remove(pooledConnection);
+                continue;
+            }
+            pooledConnection.returned();
+            pooledConnection.setState(PooledConnection.IDLE);
+            // it has been idle the longest, so it goes to the back of the deque
+            idleConnections.offerLast(pooledConnection);
+        }
+        fillPool();
+    }
+
+    // a borrower finding no idle connection opens a new one, also while the housekeeper has idle ones
+    // reserved for validation, so the pool can briefly hold more than maxPoolSize connections. the
+    // surplus is closed when it comes back instead of staying open for good.
+    private boolean isSurplus() {
+        return allConnections.size() > maxPoolSize;
+    }
+
+    private boolean isExpired(PooledConnection pooledConnection, long now) {
+        return maxLifetimeNanos > 0 && now - pooledConnection.createdAt() > maxLifetimeNanos;
     }
 
     // Create a new database connection
@@ -65,36 +225,149 @@ public class CustomDataSource implements DataSource {
         }
     }
 
-    // Get a connection from the pool
+    private PooledConnection createPooledConnection() {
+        Connection connection = createNewConnection();
+        StatementCache statementCache = statementCacheSize > 0
+                ? new StatementCache(connection, statementCacheSize, statementCacheHits, statementCacheMisses) : null;
+        PooledConnection pooledConnection = new PooledConnection(this, connection, statementCache);
+        allConnections.add(pooledConnection);
+        return pooledConnection;
+    }
+
+    // Get a connection from the pool, closing it hands it back.
+    // waits at most db.pool.acquireTimeoutMs when every connection is in use.
     @Override
-    public synchronized Connection getConnection() throws SQLException {
-        Connection connection = null;
+    public Connection getConnection() throws SQLException {
+        if (closed)
+            throw new SQLException("data source is closed");
+        // fast path: a free permit is a single CAS. once threads are queued the fast path is skipped,
+        // so it cannot barge past them and waiters are served in order.
+        if (permits.hasQueuedThreads() || !permits.tryAcquire()) {
+            int awaiting = threadsAwaiting.incrementAndGet();
+            long waitStart = System.nanoTime();
+            boolean acquired = false;
+            try {
+                acquired = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+                if (!acquired)
+                    throw new SQLTransientConnectionException("Connection is not available, request timed out after "
+                            + acquireTimeoutMillis + "ms (active=" + getActiveConnections() + ", max=" + maxPoolSize + ")");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while waiting for a connection", e);
+            } finally {
+                threadsAwaiting.decrementAndGet();
+                waited(System.nanoTime() - waitStart, awaiting, !acquired);
+            }
+        } else {
+            acquireWait.record(0); // the fast path never waits, so it skips the clock
+        }
+
         try {
-            connection = connectionPool.take();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            PooledConnection pooledConnection;
+            while ((pooledConnection = idleConnections.pollFirst()) != null) {
+                if (!pooledConnection.compareAndSetState(PooledConnection.IDLE, PooledConnection.IN_USE))
+                    continue; // reserved or removed by the pool in the meantime
+                // only connections that sat idle for a while pay for a validation round trip
+                if (System.nanoTime() - pooledConnection.lastAccessed() > validationIdleNanos
+                        && !isValid(pooledConnection.physical())) {
+                    remove(pooledConnection);
+                    continue;
+                }
+                return pooledConnection.borrow(leakDetectionNanos > 0);
+            }
+            pooledConnection = createPooledConnection();
+            pooledConnection.setState(PooledConnection.IN_USE);
+            return pooledConnection.borrow(leakDetectionNanos > 0);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
         }
-        if (isValid(connection))
-            return connection;
-        else
-            return createNewConnection();
+    }
 
+    private void waited(long nanos, int awaiting, boolean timedOut) {
+        acquireWait.record(nanos);
+        if (nanos < longWaitNanos && !timedOut)
+            return;
+        PoolWaitEvent event = new PoolWaitEvent();
+        if (event.shouldCommit()) {
+            event.pool = poolName;
+            event.waited = nanos;
+            event.threadsAwaiting = awaiting;
+            event.timedOut = timedOut;
+            event.commit();
+        }
     }
 
-    // Get a connection with specific username and password
+    // Get a connection with specific username and password, it is not pooled
     @Override
-    public synchronized Connection getConnection(String username, String password) throws SQLException {
+    public Connection getConnection(String username, String password) throws SQLException {
         return DriverManager.getConnection(url, username, password);
     }
 
-    public void returnConnection(Connection connection) throws InterruptedException {
-        connectionPool.offer(connection);
+    // Hand a connection back to the pool, same as closing it
+    @Override
+    public void returnConnection(Connection connection) throws SQLException {
+        connection.close();
     }
 
+    // called when the proxy of a borrowed connection is closed
+    void release(PooledConnection pooledConnection) {
+        try {
+            // retire old and surplus connections here, the housekeeper opens a replacement if one is needed
+            if (closed || isExpired(pooledConnection, System.nanoTime()) || isSurplus()) {
+                remove(pooledConnection);
+                return;
+            }
+            // don't hand an open transaction to the next borrower
+            Connection physical = pooledConnection.physical();
+            if (!physical.getAutoCommit()) {
+                physical.rollback();
+                physical.setAutoCommit(true);
+            }
+            pooledConnection.returned();
+            pooledConnection.setState(PooledConnection.IDLE);
+            idleConnections.offerFirst(pooledConnection);
+        } catch (SQLException e) {
+            remove(pooledConnection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void remove(PooledConnection pooledConnection) {
+        pooledConnection.setState(PooledConnection.REMOVED);
+        allConnections.remove(pooledConnection);
+        idleConnections.remove(pooledConnection);
+        pooledConnection.closePhysical();
+    }
+
+    // report connections that have been borrowed for longer than db.pool.leakDetectionMs,
+    // with the stack trace of the code that borrowed them
+    private void detectLeaks() {
+        long now = System.nanoTime();
+        for (PooledConnection pooledConnection : allConnections) {
+            Throwable trace = pooledConnection.borrowTrace();
+            if (pooledConnection.state() == PooledConnection.IN_USE && trace != null
+                    && !pooledConnection.isLeakReported()
+                    && now - pooledConnection.borrowedAt() > leakDetectionNanos) {
+                pooledConnection.markLeakReported();
+                LOGGER.log(Level.WARNING, "possible connection leak, connection borrowed "
+                        + TimeUnit.NANOSECONDS.toMillis(now - pooledConnection.borrowedAt())
+                        + "ms ago has not been returned", trace);
+            }
+        }
+    }
+
+    @Override
     public void closeAllConnections() throws SQLException {
-        for (Connection connection : connectionPool) {
-            connection.close();
+        closed = true;
+        housekeeper.shutdownNow();
+        for (PooledConnection pooledConnection : allConnections) {
+            pooledConnection.setState(PooledConnection.REMOVED);
+            pooledConnection.closePhysical();
         }
+        allConnections.clear();
+        idleConnections.clear();
     }
 
     private boolean isValid(Connection connection) {
@@ -105,6 +378,62 @@ public class CustomDataSource implements DataSource {
         }
     }
 
+    // connections currently borrowed
+    @Override
+    public int getActiveConnections() {
+        return maxPoolSize - permits.availablePermits();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return idleConnections.size();
+    }
+
+    @Override
+    public int getTotalConnections() {
+        return allConnections.size();
+    }
+
+    // threads blocked in getConnection() waiting for a connection to be returned
+    @Override
+    public int getThreadsAwaiting() {
+        return threadsAwaiting.get();
+    }
+
+    @Override
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    // the name the pool's metrics are reported under, from db.pool.name
+    public String getPoolName() {
+        return poolName;
+    }
+
+    // report the pool to another registry: gauges db.pool.<name>.active/idle/waiting/total and the
+    // histogram db.pool.<name>.acquireWait in nanoseconds
+    @Override
+    public void setMetricsRegistry(MetricsRegistry registry) {
+        String prefix = "db.pool." + poolName + ".";
+        registry.gauge(prefix + "active", this::getActiveConnections);
+        registry.gauge(prefix + "idle", this::getIdleConnections);
+        registry.gauge(prefix + "waiting", this::getThreadsAwaiting);
+        registry.gauge(prefix + "total", this::getTotalConnections);
+        registry.gauge(prefix + "statementCache.hits", this::getStatementCacheHits);
+        registry.gauge(prefix + "statementCache.misses", this::getStatementCacheMisses);
+        this.acquireWait = registry.histogram(prefix + "acquireWait");
+    }
+
+    // prepareStatement() calls served from a connection's statement cache
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    // prepareStatement() calls that had to prepare a new statement
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
     // Get the log writer for this DataSource
     @Override
     public PrintWriter getLogWriter() throws SQLException {
@@ -132,7 +461,7 @@ public class CustomDataSource implements DataSource {
     // Get the parent logger for this DataSource
     @Override
     public Logger getParentLogger() throws SQLFeatureNotSupportedException {
-        return null; // SQLFeatureNotSupportedException is thrown if not supported
+        return LOGGER;
     }
 
     // Check if this DataSource can be unwrapped to a specific class
@@ -1,4 +1,7 @@
 package org.example;
+
+import java.util.List;
+
 // marks this class as an entity and maps it to the "customer" table in db.
 @Entity(tableName = "customer")
 public class Customer {
@@ -12,6 +15,10 @@ public class Customer {
     @Column(name = "lastname")
     private String lastName;
 
+    // the orders whose customer is this one, loaded on first use
+    @OneToMany(mappedBy = "customer")
+    private List<CustomerOrder> orders;
+
     public int getId() {
         return id;
     }
@@ -35,4 +42,13 @@ public class Customer {
     public void setLastName(String lastName) {
         this.lastName = lastName;
     }
+
+    public List<CustomerOrder> getOrders() {
+        return orders;
+    }
+
+    // set by the EntityManager when the customer is loaded
+    public void setOrders(List<CustomerOrder> orders) {
+        this.orders = orders;
+    }
 }
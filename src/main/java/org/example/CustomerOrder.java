@@ -0,0 +1,40 @@
+package org.example;
+
+// an order placed by a customer, mapped to the "customer_order" table in db.
+@Entity(tableName = "customer_order")
+public class CustomerOrder {
+    @Id
+    @Column(name = "orderId")
+    private int id;
+
+    @Column(name = "product")
+    private String product;
+
+    // stored as the customerId column, the customer itself is loaded on first use
+    @ManyToOne(column = "customerId")
+    private Reference<Customer> customer;
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public String getProduct() {
+        return product;
+    }
+
+    public void setProduct(String product) {
+        this.product = product;
+    }
+
+    public Reference<Customer> getCustomer() {
+        return customer;
+    }
+
+    public void setCustomer(Reference<Customer> customer) {
+        this.customer = customer;
+    }
+}
@@ -1,343 +1,1230 @@
 package org.example;
 
-import javax.sql.DataSource;
-import java.lang.reflect.Field;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class EntityManager<T> {
-    private CustomDataSource dataSource;
+    private PooledDataSource dataSource;
     private Cache<Integer, T> cache;
+    private IntKeyCache<T> intKeyCache; // the same cache when it is an IntKeyCache, used without boxing ids
+    private int batchSize = 1000; // Maximum number of rows sent in one JDBC batch
+    private int inClauseSize = 100; // Maximum number of ids in one WHERE id IN (...) query
+    private int fetchSize = 1000; // Rows the driver fetches per round trip when streaming
+    private int batchFetchSize = 100; // Lazy associations loaded together when one of them is used
+    // column values of loaded and written entities by id, compared on update to only write what changed.
+    // an id without a snapshot (never loaded, or evicted) simply gets a full update.
+    private Cache<Integer, Object[]> snapshots = new BoundedCache<>(10_000);
+    private final LongAdder skippedUpdates = new LongAdder();
+    private final LongAdder partialUpdates = new LongAdder();
+    private final LongAdder fullUpdates = new LongAdder();
+    private boolean unitOfWork; // defer writes inside a transaction until it commits
+    private long slowStatementNanos = TimeUnit.MILLISECONDS.toNanos(100); // statements recorded as JFR events
+    // latencies in nanoseconds, looked up once so recording needs no name lookup
+    private MetricsRegistry.Histogram findLatency;
+    private MetricsRegistry.Histogram insertLatency;
+    private MetricsRegistry.Histogram updateLatency;
+    private MetricsRegistry.Histogram streamLatency;
+    private MetricsRegistry.Histogram transactionLatency;
+    private MetricsRegistry.Histogram rowsHydrated; // rows per query
+    private MetricsRegistry.Counter cacheHits;
+    private MetricsRegistry.Counter cacheMisses;
+    private QueryCache queryCache; // null = query results are not cached
+    private Cache<Integer, T> secondLevelCache; // null = no tier behind the entity cache
 
-    public EntityManager(CustomDataSource dataSource, Cache<Integer, T> cache) {
+    // with a RoutingDataSource, reads outside a transaction go to its replicas. a null cache turns entity
+    // caching off: every find selects the row.
+    public EntityManager(PooledDataSource dataSource, Cache<Integer, T> cache) {
         this.dataSource = dataSource;
-        this.cache = cache;
+        setCache(cache);
+        setMetricsRegistry(MetricsRegistry.defaultRegistry());
+    }
+
+    PooledDataSource dataSource() {
+        return dataSource;
+    }
+
+    Cache<Integer, T> cache() {
+        return cache;
     }
 
+    // an IntKeyCache is read and written through its int overloads
     public void setCache(Cache<Integer, T> cache) {
         this.cache = cache;
+        this.intKeyCache = cache instanceof IntKeyCache ? (IntKeyCache<T>) cache : null;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size must be positive");
+        this.batchSize = batchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize < 1)
+            throw new IllegalArgumentException("fetch size must be positive");
+        this.fetchSize = fetchSize;
+    }
+
+    // in unit-of-work mode insert/update calls inside a transaction are only recorded. they are written
+    // when the transaction commits (or earlier, before a read or a savepoint), grouped per statement
+    // into JDBC batches, and an entity inserted and then updated is written by a single INSERT.
+    public void setUnitOfWork(boolean unitOfWork) {
+        this.unitOfWork = unitOfWork;
+    }
+
+    // dirty checking is on by default, turning it off makes update() write every column again
+    public void setDirtyChecking(boolean enabled) {
+        this.snapshots = enabled ? new BoundedCache<>(10_000) : null;
+    }
+
+    // updates skipped because nothing changed since the entity was loaded or written
+    public long getSkippedUpdates() {
+        return skippedUpdates.sum();
+    }
+
+    // updates that only wrote the changed columns
+    public long getPartialUpdates() {
+        return partialUpdates.sum();
+    }
+
+    // updates that wrote every column, because no snapshot was available
+    public long getFullUpdates() {
+        return fullUpdates.sum();
+    }
+
+    // report to another registry. the histograms are orm.find, orm.insert, orm.update, orm.stream
+    // (until the first row can be read) and orm.transaction in nanoseconds, plus orm.rows.hydrated
+    // per query; the counters orm.cache.hit and orm.cache.miss count find/findAll lookups.
+    public void setMetricsRegistry(MetricsRegistry registry) {
+        this.findLatency = registry.histogram("orm.find");
+        this.insertLatency = registry.histogram("orm.insert");
+        this.updateLatency = registry.histogram("orm.update");
+        this.streamLatency = registry.histogram("orm.stream");
+        this.transactionLatency = registry.histogram("orm.transaction");
+        this.rowsHydrated = registry.histogram("orm.rows.hydrated");
+        this.cacheHits = registry.counter("orm.cache.hit");
+        this.cacheMisses = registry.counter("orm.cache.miss");
+    }
+
+    // statements running longer than this are recorded as org.example.SlowStatement JFR events
+    public void setSlowStatementThreshold(long amount, TimeUnit unit) {
+        this.slowStatementNanos = unit.toNanos(amount);
+    }
+
+    // touching a lazy @ManyToOne/@OneToMany loads it for up to this many entities of the same query
+    public void setBatchFetchSize(int batchFetchSize) {
+        if (batchFetchSize < 1)
+            throw new IllegalArgumentException("batch fetch size must be positive");
+        this.batchFetchSize = batchFetchSize;
+    }
+
+    // cache the results of query(...).getResultList() as id lists, resolved through the entity cache.
+    // pass the same QueryCache to every EntityManager of the database, so a write through any of
+    // them invalidates the results over its table. null turns query caching off.
+    public void setQueryCache(QueryCache queryCache) {
+        if (queryCache != null && cache == null)
+            throw new IllegalStateException("a query cache needs an entity cache to resolve its ids");
+        this.queryCache = queryCache;
+    }
+
+    // a larger, slower tier behind the entity cache, e.g. an OffHeapCache. lookups that miss the entity
+    // cache try it before the database, and loaded or written entities are stored in both tiers.
+    // null turns it off.
+    public void setSecondLevelCache(Cache<Integer, T> secondLevelCache) {
+        if (secondLevelCache != null && cache == null)
+            throw new IllegalStateException("a second level cache needs an entity cache in front of it");
+        this.secondLevelCache = secondLevelCache;
+    }
+
+    Cache<Integer, T> secondLevelCache() {
+        return secondLevelCache;
     }
 
-    // Insert a new entity into the database
+    public void setInClauseSize(int inClauseSize) {
+        if (inClauseSize < 1)
+            throw new IllegalArgumentException("IN clause size must be positive");
+        this.inClauseSize = inClauseSize;
+    }
+
+    // Insert a new entity into the database. an entity whose id is 0 gets the AUTO_INCREMENT
+    // key written back into its @Id field; either way it is cached under its id afterwards.
     public void insert(T entity) throws Exception {
-        Class<?> entityClass = entity.getClass();
-        // Check if the class has the Entity annotation
-        if (!entityClass.isAnnotationPresent(Entity.class))
-            throw new RuntimeException("not an entity class");
-
-        // Get table name and fields from entity class
-        var entityAnnotation = entityClass.getAnnotation(Entity.class);
-        var tableName = entityAnnotation.tableName();
-        var fields = entityClass.getDeclaredFields();
-
-        System.out.println("\ninserting " + entityClass.getSimpleName() + " into " + tableName + " table");
-        System.out.println("fields: " + Arrays.stream(fields)
-                .map(field -> field.getAnnotation(Column.class))
-                .map(Column::name).collect(Collectors.joining(", ")));
-
-        var sql = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
-        List<Object> values = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            insertEntity(entity);
+        } finally {
+            insertLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private void insertEntity(T entity) throws Exception {
+        UnitOfWork<T> deferred = deferredWrites();
+        if (deferred != null) {
+            deferred.insert(entity);
+            return;
+        }
+        EntityMetadata<T> metadata = EntityMetadata.of(entity);
+        String tableName = metadata.tableName();
+        boolean generatedId = metadata.needsGeneratedId(entity);
+        String sql = generatedId ? metadata.insertGeneratedIdSql() : metadata.insertSql();
+
+        System.out.println("\ninserting " + metadata.entityClass().getSimpleName() + " into " + tableName + " table");
+        System.out.println("fields: " + metadata.columnNames());
         System.out.println("...\nprovided values and columns:");
+        for (ColumnMetadata column : metadata.columns())
+            System.out.println(column.name() + ": " + column.get(entity));
+        System.out.println("...\ngenerated sql: " + sql);
+
+        // Execute the SQL INSERT statement
+        withConnection(connection -> {
+            try (PreparedStatement preparedStatement = generatedId
+                    ? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                    : connection.prepareStatement(sql)) {
+                long start = System.nanoTime();
+                if (generatedId) {
+                    metadata.bindInsertGeneratedId(preparedStatement, entity);
+                    preparedStatement.executeUpdate();
+                    try (ResultSet keys = preparedStatement.getGeneratedKeys()) {
+                        if (!keys.next())
+                            throw new SQLException("no generated key returned for " + tableName);
+                        metadata.idColumn().set(entity, keys.getInt(1));
+                    }
+                } else {
+                    metadata.bindInsert(preparedStatement, entity);
+                    preparedStatement.executeUpdate();
+                }
+                statementExecuted("insert", sql, start);
 
-        for (var field : fields) {
-            if (field.isAnnotationPresent(Column.class)) {
-                Column column = field.getAnnotation(Column.class);
-                sql.append(column.name()).append(",");
-                field.setAccessible(true);
-                System.out.println(column.name() + ": " + field.get(entity));
-                values.add(field.get(entity));
+                System.out.println("...\ninserted " + metadata.entityClass().getSimpleName() + " into " + tableName + " table successfully:)");
             }
+            return null;
+        });
+        tableChanged(metadata);
+        // the entity is now exactly what the row holds, so a following find needs no SELECT
+        if (metadata.hasId())
+            cacheWritten(metadata, List.of(entity));
+    }
+
+    // Insert many entities with a single prepared statement, sent in JDBC batches of batchSize rows.
+    // entities without an id get their generated keys back, as with insert.
+    public void insertAll(Collection<T> entities) throws Exception {
+        if (entities.isEmpty())
+            return;
+        UnitOfWork<T> deferred = deferredWrites();
+        if (deferred != null) {
+            for (T entity : entities)
+                deferred.insert(entity);
+            return;
         }
+        writeInserts(entities);
+    }
 
-        sql.setLength(sql.length() - 1); // Remove trailing comma
-        sql.append(") VALUES (");
+    private void writeInserts(Collection<T> entities) throws Exception {
+        EntityMetadata<T> metadata = EntityMetadata.of(entities.iterator().next());
 
-        for (int i = 0; i < values.size(); i++)
-            sql.append("'").append(values.get(i)).append("'").append(",");
+        List<T> generatedId = new ArrayList<>();
+        List<T> explicitId = new ArrayList<>();
+        for (T entity : entities)
+            (metadata.needsGeneratedId(entity) ? generatedId : explicitId).add(entity);
 
-        sql.setLength(sql.length() - 1); // Remove trailing comma
-        sql.append(")");
-        System.out.println("...\ngenerated sql: " + sql);
+        System.out.println("\ninserting " + entities.size() + " " + metadata.entityClass().getSimpleName() +
+                " into " + metadata.tableName() + " table in batches of " + batchSize);
+        // both statements commit together, so a failure leaves none of the rows behind
+        try {
+            writeBatches(connection -> {
+                if (!generatedId.isEmpty()) {
+                    System.out.println("generated sql: " + metadata.insertGeneratedIdSql());
+                    executeBatches(connection, metadata.insertGeneratedIdSql(), generatedId,
+                            metadata::bindInsertGeneratedId, metadata.idColumn());
+                }
+                if (!explicitId.isEmpty()) {
+                    System.out.println("generated sql: " + metadata.insertSql());
+                    executeBatches(connection, metadata.insertSql(), explicitId, metadata::bindInsert, null);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // the rows are gone, so the ids handed out for them are not valid anymore
+            if (TransactionContext.current(dataSource) == null) {
+                for (T entity : generatedId)
+                    metadata.idColumn().set(entity, 0);
+            }
+            throw e;
+        }
+        System.out.println("...\ninserted " + entities.size() + " rows into " + metadata.tableName() + " table successfully:)");
+        tableChanged(metadata);
 
-        // Execute the SQL INSERT statement
-        try (Connection connection = dataSource.getConnection();
-             Statement stmt = connection.createStatement()) {
-            stmt.executeUpdate(sql.toString());
+        if (metadata.hasId())
+            cacheWritten(metadata, entities);
+    }
 
-            System.out.println("...\ninserted " + entityClass.getSimpleName() + " into " + tableName + " table successfully:)");
-            dataSource.returnConnection(connection);
+    // Update many entities with a single prepared statement, sent in JDBC batches of batchSize rows
+    public void updateAll(Collection<T> entities) throws Exception {
+        if (entities.isEmpty())
+            return;
+        UnitOfWork<T> deferred = deferredWrites();
+        if (deferred != null) {
+            for (T entity : entities)
+                deferred.update(entity);
+            return;
         }
+        EntityMetadata<T> metadata = EntityMetadata.of(entities.iterator().next());
+        ColumnMetadata idColumn = metadata.idColumn();
+
+        // a batch runs one statement, so the changed rows are written in full and only unchanged ones are skipped
+        List<T> changed = new ArrayList<>(entities.size());
+        for (T entity : entities) {
+            if (changedColumns(metadata, (Integer) idColumn.get(entity), entity) != 0)
+                changed.add(entity);
+        }
+        skippedUpdates.add(entities.size() - changed.size());
+        fullUpdates.add(changed.size());
+
+        if (!changed.isEmpty()) {
+            System.out.println("\nupdating " + changed.size() + " " + metadata.entityClass().getSimpleName() +
+                    " in " + metadata.tableName() + " table in batches of " + batchSize +
+                    ", " + (entities.size() - changed.size()) + " unchanged skipped");
+            System.out.println("generated sql: " + metadata.updateSql());
+
+            writeBatches(connection -> {
+                executeBatches(connection, metadata.updateSql(), changed, metadata::bindUpdate, null);
+                return null;
+            });
+            System.out.println("...\nupdated " + changed.size() + " rows in " + metadata.tableName() + " table successfully:)");
+            tableChanged(metadata);
+        }
+
+        // Update the cache with the new entity data
+        cacheWritten(metadata, entities);
+    }
+
+    // Run batched statements on one connection. Outside a transaction they are committed together
+    // instead of one commit per row, and rolled back together if any of them fails.
+    private void writeBatches(ConnectionCallback<Void> work) throws Exception {
+        withConnection(connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            if (autoCommit)
+                connection.setAutoCommit(false);
+            try {
+                work.doWithConnection(connection);
+                if (autoCommit)
+                    connection.commit();
+            } catch (Exception e) {
+                if (autoCommit)
+                    connection.rollback();
+                throw e;
+            } finally {
+                if (autoCommit)
+                    connection.setAutoCommit(true);
+            }
+            return null;
+        });
+    }
+
+    // Run one statement for every entity, flushing a batch each time batchSize rows are queued.
+    // when generatedIdColumn is set, the keys of each batch are written back to its entities.
+    private void executeBatches(Connection connection, String sql, Collection<T> entities, StatementBinder<T> binder,
+                                ColumnMetadata generatedIdColumn) throws SQLException {
+        try (PreparedStatement preparedStatement = generatedIdColumn != null
+                ? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                : connection.prepareStatement(sql)) {
+            List<T> batch = new ArrayList<>(Math.min(batchSize, entities.size()));
+            long start = System.nanoTime();
+            for (T entity : entities) {
+                binder.bind(preparedStatement, entity);
+                preparedStatement.addBatch();
+                batch.add(entity);
+                if (batch.size() == batchSize)
+                    flushBatch(preparedStatement, batch, generatedIdColumn);
+            }
+            if (!batch.isEmpty())
+                flushBatch(preparedStatement, batch, generatedIdColumn);
+            statementExecuted("batch", sql, start);
+        }
+    }
+
+    private void flushBatch(PreparedStatement preparedStatement, List<T> batch, ColumnMetadata generatedIdColumn)
+            throws SQLException {
+        preparedStatement.executeBatch();
+        if (generatedIdColumn != null) {
+            // drivers return the keys of a batch in the order the rows were added
+            try (ResultSet keys = preparedStatement.getGeneratedKeys()) {
+                for (T entity : batch) {
+                    if (!keys.next())
+                        throw new SQLException("fewer generated keys than inserted rows");
+                    generatedIdColumn.set(entity, keys.getInt(1));
+                }
+            }
+        }
+        batch.clear();
+    }
+
+    // binds one entity as the parameters of a prepared statement
+    private interface StatementBinder<T> {
+        void bind(PreparedStatement statement, T entity) throws SQLException;
+    }
+
+    // the unit of work of the current transaction when writes are deferred, otherwise null
+    private UnitOfWork<T> deferredWrites() {
+        if (!unitOfWork)
+            return null;
+        TransactionContext transaction = TransactionContext.current(dataSource);
+        return transaction == null ? null : transaction.unitOfWork(this, () -> new UnitOfWork<>(this::flush));
+    }
+
+    // write the inserts and updates of a unit of work: one batched statement per insert shape and
+    // one per set of changed columns
+    private void flush(List<T> inserts, List<T> updates) throws Exception {
+        System.out.println("\nflushing " + inserts.size() + " inserts and " + updates.size() + " updates");
+        if (!inserts.isEmpty())
+            writeInserts(inserts);
+        if (updates.isEmpty())
+            return;
+
+        EntityMetadata<T> metadata = EntityMetadata.of(updates.get(0));
+        Map<Long, List<T>> byChangedColumns = new LinkedHashMap<>();
+        for (T entity : updates) {
+            long changedColumns = changedColumns(metadata, metadata.id(entity), entity);
+            if (changedColumns == 0) {
+                skippedUpdates.increment();
+                continue;
+            }
+            if (changedColumns == EntityMetadata.ALL_COLUMNS)
+                fullUpdates.increment();
+            else
+                partialUpdates.increment();
+            byChangedColumns.computeIfAbsent(changedColumns, key -> new ArrayList<>()).add(entity);
+        }
+        writeBatches(connection -> {
+            for (Map.Entry<Long, List<T>> group : byChangedColumns.entrySet()) {
+                long changedColumns = group.getKey();
+                String sql = metadata.updateSql(changedColumns);
+                System.out.println("generated sql: " + sql + " (" + group.getValue().size() + " rows)");
+                executeBatches(connection, sql, group.getValue(),
+                        (statement, entity) -> metadata.bindUpdate(statement, entity, changedColumns), null);
+            }
+            return null;
+        });
+        if (!byChangedColumns.isEmpty())
+            tableChanged(metadata);
+        cacheWritten(metadata, updates);
+    }
+
+    // run the writes deferred in the current transaction, a read inside it must see them
+    private void flushDeferredWrites() throws SQLException {
+        TransactionContext transaction = TransactionContext.current(dataSource);
+        if (transaction != null)
+            transaction.flush();
     }
 
     // Find an entity by its primary key
     public T find(Class<T> entityClass, int primaryKey) throws Exception {
-        if (!entityClass.isAnnotationPresent(Entity.class))
-            throw new RuntimeException("not an entity class");
+        long start = System.nanoTime();
+        try {
+            return findEntity(entityClass, primaryKey);
+        } finally {
+            findLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private T findEntity(Class<T> entityClass, int primaryKey) throws Exception {
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+
+        // inside a transaction the row may be uncommitted, so it is not shared with other threads' lookups
+        if (TransactionContext.current(dataSource) != null) {
+            T cachedEntity = cacheGet(primaryKey);
+            if (cachedEntity == null) {
+                cachedEntity = secondLevelGet(primaryKey, associationLoader(metadata, false));
+                if (cachedEntity != null)
+                    firstLevelPut(primaryKey, cachedEntity);
+            }
+            if (cachedEntity != null) {
+                cacheHits.increment();
+                System.out.println("Entity found in cache");
+                return cachedEntity;
+            }
+            cacheMisses.increment();
+            T entity = load(metadata, primaryKey);
+            if (entity != null)
+                cachePut(primaryKey, entity);
+            return entity;
+        }
 
         // Check the cache first
-        T cachedEntity = cache.get(primaryKey);
-        if (cachedEntity != null) {
+        T entity = cacheGet(primaryKey);
+        if (entity != null) {
+            cacheHits.increment();
             System.out.println("Entity found in cache");
-            return cachedEntity;
+            return entity;
+        }
+        // a miss, whether this thread loads the row or waits for another thread's load of the same id:
+        // concurrent misses share a single SELECT
+        boolean[] secondLevelHit = new boolean[1];
+        Object[] loadedHere = new Object[1]; // what this thread's loader returned, if it ran
+        CacheLoader<Integer, T> loader = id -> {
+            T loaded = secondLevelGet(id, associationLoader(metadata, false));
+            if (loaded != null)
+                secondLevelHit[0] = true;
+            else
+                loaded = load(metadata, id);
+            loadedHere[0] = loaded;
+            return loaded;
+        };
+        IntKeyCache<T> intKeyCache = this.intKeyCache;
+        Cache<Integer, T> cache = this.cache;
+        entity = intKeyCache != null ? intKeyCache.getOrLoad(primaryKey, loader)
+                : cache != null ? cache.getOrLoad(primaryKey, loader) : loader.load(primaryKey);
+        if (secondLevelHit[0]) {
+            cacheHits.increment();
+            System.out.println("Entity found in cache");
+        } else {
+            cacheMisses.increment();
+        }
+        // the cache kept the entity this thread loaded, so it is the one a later update is compared to.
+        // a row that may come from a lagging replica only reaches the second level cache in that case too
+        if (entity != null && entity == loadedHere[0]) {
+            readSnapshot(primaryKey, entity);
+            if (!secondLevelHit[0])
+                secondLevelRead(primaryKey, entity);
+        }
+        return entity;
+    }
+
+    // Find several entities by primary key. cached entities are served from the cache and only the
+    // missing ids are selected, inClauseSize ids per query. the result follows the order of `ids`;
+    // ids without a row are left out.
+    public List<T> findAll(Class<T> entityClass, Collection<Integer> ids) throws Exception {
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        Map<Integer, T> found = new HashMap<>();
+        Set<Integer> missing = new LinkedHashSet<>();
+        AssociationLoader<T> loader = associationLoader(metadata, false);
+        boolean inTransaction = TransactionContext.current(dataSource) != null;
+        for (Integer id : ids) {
+            if (found.containsKey(id) || missing.contains(id))
+                continue;
+            T cachedEntity = cacheGet(id);
+            if (cachedEntity == null) {
+                cachedEntity = secondLevelGet(id, loader);
+                if (cachedEntity != null) {
+                    if (inTransaction)
+                        firstLevelPut(id, cachedEntity);
+                    else
+                        cachedEntity = cacheRead(id, cachedEntity, false);
+                }
+            }
+            if (cachedEntity != null)
+                found.put(id, cachedEntity);
+            else
+                missing.add(id);
         }
+        cacheHits.add(found.size());
+        cacheMisses.add(missing.size());
 
-        Entity entityAnnotation = entityClass.getAnnotation(Entity.class);
-        String tableName = entityAnnotation.tableName();
-        var fields = entityClass.getDeclaredFields();
-        Field idField = null;
+        if (!missing.isEmpty()) {
+            System.out.println("\nsearching for " + missing.size() + " " + entityClass.getSimpleName() +
+                    " in " + metadata.tableName() + " table, " + found.size() + " found in cache");
+            flushDeferredWrites();
+            RowMapper<T> mapper = attaching(loader, metadata::hydrate);
+            Consumer<T> loaded = entity -> {
+                int id = metadata.id(entity);
+                if (inTransaction)
+                    cachePut(id, entity);
+                else
+                    entity = cacheRead(id, entity, true);
+                found.put(id, entity);
+            };
+            selectIn(metadata, metadata.idColumn(), missing, mapper, loaded);
+        }
+
+        List<T> result = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            T entity = found.get(id);
+            if (entity != null)
+                result.add(entity);
+        }
+        return result;
+    }
 
-        System.out.println("\nsearching for a " + entityClass.getSimpleName() +
-                " with id:" + primaryKey + " in " + tableName + " table");
-        System.out.println("fields: " + Arrays.stream(fields)
-                .map(field -> field.getAnnotation(Column.class))
-                .map(Column::name).collect(Collectors.joining(", ")) + "\n...");
+    // select the entities of any class whose `column` holds one of `keys`, inClauseSize keys per query.
+    // used to load associations: the result is not cached, but gets lazy associations of its own.
+    <R> List<R> selectIn(EntityMetadata<R> metadata, ColumnMetadata column, Collection<Integer> keys) throws Exception {
+        System.out.println("\nloading " + metadata.entityClass().getSimpleName() + " from " + metadata.tableName() +
+                " table for " + keys.size() + " " + column.name() + " values");
+        flushDeferredWrites();
+        List<R> result = new ArrayList<>();
+        selectIn(metadata, column, keys, attaching(associationLoader(metadata, false), metadata::hydrate), result::add);
+        return result;
+    }
 
-        // Find the ID field
-        for (var field : fields) {
-            if (field.isAnnotationPresent(Id.class)) {
-                idField = field;
-                break;
+    private <R> void selectIn(EntityMetadata<R> metadata, ColumnMetadata column, Collection<Integer> keys,
+                              RowMapper<R> mapper, Consumer<R> consumer) throws Exception {
+        withReadConnection(connection -> {
+            List<Integer> chunk = new ArrayList<>(Math.min(inClauseSize, keys.size()));
+            for (Integer key : keys) {
+                chunk.add(key);
+                if (chunk.size() == inClauseSize) {
+                    selectChunk(connection, metadata, column, chunk, mapper, consumer);
+                    chunk.clear();
+                }
             }
-        }
+            if (!chunk.isEmpty())
+                selectChunk(connection, metadata, column, chunk, mapper, consumer);
+            return null;
+        });
+    }
 
-        if (idField == null) {
-            throw new RuntimeException("no Id field found");
+    // select one chunk of keys with a single IN query. the placeholder count is rounded up to a power
+    // of two (repeating the last key), so only a handful of distinct statements are ever prepared.
+    private <R> void selectChunk(Connection connection, EntityMetadata<R> metadata, ColumnMetadata column,
+                                 List<Integer> chunk, RowMapper<R> mapper, Consumer<R> consumer) throws Exception {
+        int placeholders = Math.min(Integer.highestOneBit(chunk.size() - 1) << 1, inClauseSize);
+        placeholders = Math.max(placeholders, chunk.size());
+        String sql = metadata.selectInSql(column, placeholders);
+        System.out.println("generated sql: " + sql);
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < placeholders; i++)
+                preparedStatement.setInt(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+            long start = System.nanoTime();
+            int rows = 0;
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(mapper.map(rs));
+                    rows++;
+                }
+            }
+            statementExecuted("find", sql, start);
+            rowsHydrated.record(rows);
         }
+    }
+
+    // the loader giving the entities of one query their lazy associations, null if the class has none
+    <R> AssociationLoader<R> associationLoader(EntityMetadata<R> metadata, boolean streaming) {
+        if (!metadata.hasAssociations())
+            return null;
+        return new AssociationLoader<>(this, metadata, batchFetchSize, streaming);
+    }
 
-        Column idColumn = idField.getAnnotation(Column.class);
-        String idColumnName = idColumn.name();
-        String sql = "SELECT * FROM " + tableName + " WHERE " + idColumnName + " = ?";
+    private static <R> RowMapper<R> attaching(AssociationLoader<R> loader, RowMapper<R> mapper) {
+        return loader == null ? mapper : rs -> loader.attach(mapper.map(rs));
+    }
 
+    // Select a single row by primary key, bypassing the cache
+    private T load(EntityMetadata<T> metadata, int primaryKey) throws Exception {
+        String sql = metadata.selectByIdSql();
+        System.out.println("\nsearching for a " + metadata.entityClass().getSimpleName() +
+                " with id:" + primaryKey + " in " + metadata.tableName() + " table");
+        System.out.println("fields: " + metadata.columnNames() + "\n...");
         System.out.println("generated sql: " + sql);
 
         // Execute the SQL SELECT statement
-        try (Connection connection = dataSource.getConnection();
-             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
-            preparedStatement.setObject(1, primaryKey);
-
-            try (ResultSet rs = preparedStatement.executeQuery()) {
-                if (rs.next()) {
-                    T entity = entityClass.getDeclaredConstructor().newInstance();
-                    for (var field : fields) {
-                        if (field.isAnnotationPresent(Column.class)) {
-                            Column column = field.getAnnotation(Column.class);
-                            field.setAccessible(true);
-                            field.set(entity, rs.getObject(column.name()));
-                        }
-                    }
-                    // Put the fetched entity in the cache
-                    cache.put(primaryKey, entity);
+        flushDeferredWrites();
+        RowMapper<T> mapper = attaching(associationLoader(metadata, false), metadata::hydrate);
+        return withReadConnection(connection -> {
+            try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+                preparedStatement.setInt(1, primaryKey);
 
-                    return entity;
+                long start = System.nanoTime();
+                T entity = null;
+                try (ResultSet rs = preparedStatement.executeQuery()) {
+                    if (rs.next())
+                        entity = mapper.map(rs);
                 }
+                statementExecuted("find", sql, start);
+                rowsHydrated.record(entity == null ? 0 : 1);
+                return entity;
             }
-            dataSource.returnConnection(connection);
-        }
-        return null;
+        });
     }
 
     // Update an existing entity in the database
     public void update(T entity) throws Exception {
-        Class<?> entityClass = entity.getClass();
-        if (!entityClass.isAnnotationPresent(Entity.class)) {
-            throw new RuntimeException("not an entity class");
-        }
-
-        Entity entityAnnotation = entityClass.getAnnotation(Entity.class);
-        String tableName = entityAnnotation.tableName();
-        StringBuilder sql = new StringBuilder("UPDATE ").append(tableName).append(" SET ");
-        var fields = entityClass.getDeclaredFields();
-
-        System.out.println("\nupdating " + entityClass.getSimpleName() + " " + tableName + " table");
-        System.out.println("fields: " + Arrays.stream(fields)
-                .map(field -> field.getAnnotation(Column.class))
-                .map(Column::name).collect(Collectors.joining(", ")));
-
-        List<Object> values = new ArrayList<>();
-        Object primaryKeyValue = null;
-        for (Field field : fields) {
-            if (field.isAnnotationPresent(Column.class)) {
-                Column column = field.getAnnotation(Column.class);
-                field.setAccessible(true);
-                if (field.isAnnotationPresent(Id.class)) {
-                    primaryKeyValue = field.get(entity);
-                } else {
-                    sql.append(column.name()).append(" = ?,");
-                    values.add(field.get(entity));
-                }
-            }
+        long start = System.nanoTime();
+        try {
+            updateEntity(entity);
+        } finally {
+            updateLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private void updateEntity(T entity) throws Exception {
+        UnitOfWork<T> deferred = deferredWrites();
+        if (deferred != null) {
+            deferred.update(entity);
+            return;
         }
+        EntityMetadata<T> metadata = EntityMetadata.of(entity);
+        String tableName = metadata.tableName();
+        ColumnMetadata idColumn = metadata.idColumn();
 
+        Object primaryKeyValue = idColumn.get(entity);
         if (primaryKeyValue == null) {
             throw new RuntimeException("Primary key not found");
         }
 
-        sql.setLength(sql.length() - 1); // Remove trailing comma
-        sql.append(" WHERE ");
-
-        for (var field : fields) {
-            if (field.isAnnotationPresent(Id.class)) {
-                Column column = field.getAnnotation(Column.class);
-                sql.append(column.name()).append(" = ?");
-                values.add(primaryKeyValue);
-                break;
-            }
+        // Only write the columns that differ from the last loaded or written state
+        long changedColumns = changedColumns(metadata, (Integer) primaryKeyValue, entity);
+        if (changedColumns == 0) {
+            skippedUpdates.increment();
+            System.out.println("\n" + metadata.entityClass().getSimpleName() + " with id:" + primaryKeyValue +
+                    " has no changes, update skipped");
+            cacheWritten(metadata, List.of(entity));
+            return;
         }
+        if (changedColumns == EntityMetadata.ALL_COLUMNS)
+            fullUpdates.increment();
+        else
+            partialUpdates.increment();
+        String sql = metadata.updateSql(changedColumns);
+
+        System.out.println("\nupdating " + metadata.entityClass().getSimpleName() + " " + tableName + " table");
+        System.out.println("fields: " + metadata.columnNames(changedColumns));
         System.out.println("generated sql: " + sql);
 
         // Execute the SQL UPDATE statement
-        try (Connection connection = dataSource.getConnection();
-             PreparedStatement preparedStatement = connection.prepareStatement(sql.toString())) {
-            for (int i = 0; i < values.size(); i++) {
-                preparedStatement.setObject(i + 1, values.get(i));
+        withConnection(connection -> {
+            try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+                metadata.bindUpdate(preparedStatement, entity, changedColumns);
+                long start = System.nanoTime();
+                preparedStatement.executeUpdate();
+                statementExecuted("update", sql, start);
+                System.out.println("...\nupdated " + metadata.entityClass().getSimpleName() + " in " + tableName + " table successfully:)");
             }
-            preparedStatement.executeUpdate();
-            System.out.println("...\nupdated " + entityClass.getSimpleName() + " in " + tableName + " table successfully:)");
+            return null;
+        });
+        tableChanged(metadata);
 
-            // Update the cache with the new entity data
-            cache.put((Integer) primaryKeyValue, entity);
-            dataSource.returnConnection(connection);
-        }
+        // Update the cache with the new entity data
+        cacheWritten(metadata, List.of(entity));
+    }
+
+    // columns of `entity` changed since its snapshot was taken, ALL_COLUMNS without a snapshot
+    private long changedColumns(EntityMetadata<T> metadata, int id, T entity) {
+        Object[] snapshot = snapshots == null ? null : snapshots.get(id);
+        return snapshot == null ? EntityMetadata.ALL_COLUMNS : metadata.changedColumns(entity, snapshot);
     }
 
     // Create a table for the entity class if it does not exist
     public void createTable(Class<T> entityClass) throws Exception {
-        if (!entityClass.isAnnotationPresent(Entity.class)) {
-            throw new RuntimeException("not an entity class");
-        }
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
         System.out.println("\ncreating table " + entityClass.getSimpleName() + " if not exists!");
-        Entity entityAnnotation = entityClass.getAnnotation(Entity.class);
-        String tableName = entityAnnotation.tableName();
-
-        StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(tableName).append(" (");
-
-        Field[] fields = entityClass.getDeclaredFields();
-        for (Field field : fields) {
-            if (field.isAnnotationPresent(Column.class)) {
-                Column column = field.getAnnotation(Column.class);
-                sql.append(column.name()).append(" ");
-                if (field.isAnnotationPresent(Id.class)) {
-                    sql.append("INT PRIMARY KEY AUTO_INCREMENT,");
-                } else {
-                    // Simplified type mapping
-                    if (field.getType() == String.class) {
-                        sql.append("VARCHAR(255),");
-                    } else if (field.getType() == int.class) {
-                        sql.append("INT,");
-                    } else {
-                        throw new RuntimeException("Unsupported field type");
-                    }
-                }
-            }
-        }
-
-        sql.setLength(sql.length() - 1); // Remove trailing comma
-        sql.append(")");
+        String sql = metadata.createTableSql();
 
         // Execute the SQL CREATE TABLE statement
-        try (Connection connection = dataSource.getConnection();
-             Statement stmt = connection.createStatement()) {
-            stmt.execute(sql.toString());
-            System.out.println("...\ntable " + entityClass.getSimpleName() + " created successfully:)");
-            dataSource.returnConnection(connection);
-        }
+        withConnection(connection -> {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute(sql);
+                System.out.println("...\ntable " + entityClass.getSimpleName() + " created successfully:)");
+            }
+            return null;
+        });
+        tableChanged(metadata);
     }
 
     // Add a new column to an existing table
     public void addColumn(Class<T> entityClass, String columnName, String columnType) throws Exception {
         System.out.println("\naltering table " + entityClass.getSimpleName());
-        if (!entityClass.isAnnotationPresent(Entity.class)) {
-            throw new RuntimeException("not an entity class");
-        }
-
-        Entity entityAnnotation = entityClass.getAnnotation(Entity.class);
-        String tableName = entityAnnotation.tableName();
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        String tableName = metadata.tableName();
 
         String sql = "ALTER TABLE " + tableName + " ADD COLUMN " + columnName + " " + columnType;
 
         // Execute the SQL ALTER TABLE statement
-        try (Connection connection = dataSource.getConnection();
-             Statement stmt = connection.createStatement()) {
-            stmt.execute(sql);
-            System.out.println("...\ntable " + entityClass.getSimpleName() + " altered successfully:)");
-            dataSource.returnConnection(connection);
-        }
+        withConnection(connection -> {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute(sql);
+                System.out.println("...\ntable " + entityClass.getSimpleName() + " altered successfully:)");
+            }
+            return null;
+        });
+        tableChanged(metadata);
     }
 
     // Select and print all records from the table corresponding to the entity class
     public void selectAndPrintAll(Class<T> entityClass) throws Exception {
-        if (!entityClass.isAnnotationPresent(Entity.class))
-            throw new RuntimeException("not an entity class");
-
-        Entity entityAnnotation = entityClass.getAnnotation(Entity.class);
-        String tableName = entityAnnotation.tableName();
-        String sql = "SELECT * FROM " + tableName;
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        String tableName = metadata.tableName();
+        String sql = metadata.selectAllSql();
 
         System.out.println("\nSelecting and printing all records from " + tableName + " table");
 
-        // Execute the SQL SELECT statement and print the results
-        try (Connection connection = dataSource.getConnection();
-             Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
-
-            // Print column names
-            ResultSetMetaData rsmd = rs.getMetaData();
-            int columnCount = rsmd.getColumnCount();
-            for (int i = 1; i <= columnCount; i++) {
-                System.out.print(rsmd.getColumnName(i) + "\t");
-            }
-            System.out.println();
+        // Execute the SQL SELECT statement and print the results, streaming rows instead of loading the table
+        flushDeferredWrites();
+        withReadConnection(connection -> {
+            try (Statement stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                stmt.setFetchSize(streamingFetchSize(connection));
+                ResultSet rs = stmt.executeQuery(sql);
 
-            // Print each row
-            while (rs.next()) {
+                // Print column names
+                ResultSetMetaData rsmd = rs.getMetaData();
+                int columnCount = rsmd.getColumnCount();
                 for (int i = 1; i <= columnCount; i++) {
-                    System.out.print(rs.getString(i) + "\t");
+                    System.out.print(rsmd.getColumnName(i) + "\t");
                 }
                 System.out.println();
+
+                // Print each row
+                while (rs.next()) {
+                    for (int i = 1; i <= columnCount; i++) {
+                        System.out.print(rs.getString(i) + "\t");
+                    }
+                    System.out.println();
+                }
+            }
+            return null;
+        });
+    }
+
+    // Stream every entity of the table, see stream(Class, String, Object...)
+    public Stream<T> stream(Class<T> entityClass) throws Exception {
+        return stream(entityClass, null);
+    }
+
+    // Stream the entities matching a WHERE clause (e.g. "lastname = ?") with its ? parameters.
+    // rows are read through a forward-only, read-only cursor and hydrated one at a time, so memory
+    // stays constant however large the table is. streamed entities are not cached. the connection
+    // goes back to the pool when the stream is closed or fully consumed, so use try-with-resources.
+    // inside a transaction the stream reads on the transaction's connection, which other calls keep
+    // using meanwhile; MySQL then buffers the whole result unless db.url has useCursorFetch=true.
+    public Stream<T> stream(Class<T> entityClass, String whereClause, Object... parameters) throws Exception {
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        String sql = whereClause == null ? metadata.selectColumnsSql()
+                : metadata.selectColumnsSql() + " WHERE " + whereClause;
+        System.out.println("\nstreaming " + entityClass.getSimpleName() + " from " + metadata.tableName() + " table");
+        System.out.println("generated sql: " + sql);
+        return openStream(sql, parameters, attaching(associationLoader(metadata, true), metadata::hydrate));
+    }
+
+    // Write every row of the table to a file, see BulkTransfer for the formats and for parallelism and
+    // progress reporting
+    public long exportTo(Class<T> entityClass, Path file, BulkFormat format) throws Exception {
+        return new BulkTransfer<>(this, entityClass).exportTo(file, format);
+    }
+
+    // Insert every row of a file written by exportTo (or any CSV with a header of column names) in
+    // large JDBC batches, see BulkTransfer
+    public long importFrom(Class<T> entityClass, Path file, BulkFormat format) throws Exception {
+        return new BulkTransfer<>(this, entityClass).importFrom(file, format);
+    }
+
+    // Start building a query over an entity class, see Query
+    public Query<T> query(Class<T> entityClass) {
+        return new Query<>(this, EntityMetadata.of(entityClass));
+    }
+
+    // run a built query. complete entities are cached like the ones loaded by find, and an entity that
+    // was already cached is returned instead of the row read for it
+    List<T> getResultList(Query<T> query) throws Exception {
+        EntityMetadata<T> metadata = query.metadata();
+        String sql = query.sql();
+        Object[] parameters = query.parameters();
+        AssociationLoader<T> loader = associationLoader(metadata, false);
+        RowMapper<T> mapper = attaching(loader, query.rowMapper());
+        boolean cacheResults = !query.isProjection() && metadata.hasId();
+        System.out.println("\nquerying " + metadata.entityClass().getSimpleName() + " in " + metadata.tableName() + " table");
+        System.out.println("generated sql: " + sql);
+
+        // complete entities read outside a transaction, without fetch(): a cached result resolves its ids
+        // through the entity cache, and associations fetched up front could not be guaranteed that way
+        QueryCache queryCache = cacheResults && !query.isFetching()
+                && TransactionContext.current(dataSource) == null ? this.queryCache : null;
+        long tableVersion = 0;
+        if (queryCache != null) {
+            int[] ids = queryCache.get(metadata.tableName(), sql, parameters);
+            if (ids != null) {
+                System.out.println("query result found in cache, " + ids.length + " ids");
+                List<Integer> idList = new ArrayList<>(ids.length);
+                for (int id : ids)
+                    idList.add(id);
+                return findAll(metadata.entityClass(), idList);
             }
-            dataSource.returnConnection(connection);
+            tableVersion = queryCache.version(metadata.tableName());
         }
+
+        flushDeferredWrites();
+        boolean inTransaction = TransactionContext.current(dataSource) != null;
+        ConnectionCallback<List<T>> select = connection -> {
+            List<T> result = new ArrayList<>();
+            try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+                for (int i = 0; i < parameters.length; i++)
+                    preparedStatement.setObject(i + 1, parameters[i]);
+                long start = System.nanoTime();
+                try (ResultSet rs = preparedStatement.executeQuery()) {
+                    while (rs.next()) {
+                        T entity = mapper.map(rs);
+                        if (cacheResults && inTransaction)
+                            cachePut(metadata.id(entity), entity);
+                        else if (cacheResults)
+                            entity = cacheRead(metadata.id(entity), entity, true);
+                        result.add(entity);
+                    }
+                }
+                statementExecuted("query", sql, start);
+            }
+            rowsHydrated.record(result.size());
+            // fetched collections: one more query for the whole result instead of one per row
+            for (AssociationMetadata association : query.fetchedCollections())
+                loader.fetch(association);
+            return result;
+        };
+        // a result that will be cached is read on the primary: the table version only tracks writes
+        // made there, so a lagging replica's result would be stored as current and served until it expires
+        List<T> resultList = queryCache != null ? withConnection(select) : withReadConnection(select);
+        if (queryCache != null) {
+            int[] ids = new int[resultList.size()];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = metadata.id(resultList.get(i));
+            queryCache.put(metadata.tableName(), tableVersion, sql, parameters, ids);
+        }
+        return resultList;
     }
 
-    // Execute a transaction with auto-commit disabled
+    Stream<T> getResultStream(Query<T> query) throws Exception {
+        String sql = query.sql();
+        System.out.println("\nstreaming " + query.metadata().entityClass().getSimpleName() +
+                " from " + query.metadata().tableName() + " table");
+        System.out.println("generated sql: " + sql);
+        return openStream(sql, query.parameters(),
+                attaching(associationLoader(query.metadata(), true), query.rowMapper()));
+    }
+
+    // run a query on a cursor and expose its rows as a lazily mapped stream
+    private <R> Stream<R> openStream(String sql, Object[] parameters, RowMapper<R> mapper) throws SQLException {
+        flushDeferredWrites();
+        TransactionContext transaction = TransactionContext.current(dataSource);
+        // inside a transaction the stream reads on the transaction's connection and must not close it
+        Connection connection = transaction != null ? transaction.connection() : dataSource.getReadConnection();
+        PreparedStatement preparedStatement = null;
+        long start = System.nanoTime();
+        try {
+            preparedStatement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // MySQL's row-by-row streaming blocks every other statement on the connection until the result
+            // is read, and inside a transaction a find, a lazy association or a deferred flush during the
+            // iteration would run on this same connection
+            preparedStatement.setFetchSize(transaction != null ? fetchSize : streamingFetchSize(connection));
+            for (int i = 0; i < parameters.length; i++)
+                preparedStatement.setObject(i + 1, parameters[i]);
+            ResultSet rs = preparedStatement.executeQuery();
+            statementExecuted("stream", sql, start);
+            streamLatency.record(System.nanoTime() - start);
+
+            PreparedStatement statement = preparedStatement;
+            ResultSetSpliterator<R> rows = new ResultSetSpliterator<>(rs, mapper, () -> {
+                try {
+                    statement.close(); // closes the result set as well
+                } finally {
+                    if (transaction == null)
+                        connection.close();
+                }
+            }, rowsHydrated::record);
+            return StreamSupport.stream(rows, false).onClose(rows::close);
+        } catch (SQLException | RuntimeException e) {
+            if (preparedStatement != null)
+                preparedStatement.close();
+            if (transaction == null)
+                connection.close();
+            throw e;
+        }
+    }
+
+    // MySQL Connector/J ignores a positive fetch size and buffers the whole result unless cursor
+    // fetch is enabled; Integer.MIN_VALUE switches it to row-by-row streaming instead
+    int streamingFetchSize(Connection connection) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        if ("MySQL".equals(metaData.getDatabaseProductName()) && !metaData.getURL().contains("useCursorFetch=true"))
+            return Integer.MIN_VALUE;
+        return fetchSize;
+    }
+
+    // record a statement that ran longer than the slow statement threshold as a JFR event
+    private void statementExecuted(String operation, String sql, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        if (elapsed < slowStatementNanos)
+            return;
+        SlowStatementEvent event = new SlowStatementEvent();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.sql = sql;
+            event.elapsed = elapsed;
+            event.commit();
+        }
+    }
+
+    // cache written entities, giving them the lazy associations a find would, so one served from the
+    // cache can still navigate them. each gets a loader of its own, like an entity loaded by find: a
+    // shared one would let one cached entity keep every other entity of a large write reachable.
+    private void cacheWritten(EntityMetadata<T> metadata, Collection<T> entities) {
+        for (T entity : entities) {
+            AssociationLoader<T> loader = associationLoader(metadata, false);
+            if (loader != null)
+                loader.attach(entity);
+            cachePut(metadata.id(entity), entity);
+        }
+    }
+
+    // cache a loaded or written entity in both tiers
+    private void cachePut(int id, T entity) {
+        firstLevelPut(id, entity);
+        secondLevelPut(id, entity);
+    }
+
+    // cache an entity in the entity cache (if there is one) and remember its column values for dirty checking.
+    // inside a transaction both are dropped again if it rolls back, so neither reflects a row that was not committed.
+    private void firstLevelPut(int id, T entity) {
+        IntKeyCache<T> intKeyCache = this.intKeyCache;
+        Cache<Integer, T> cache = this.cache;
+        if (intKeyCache != null)
+            intKeyCache.put(id, entity);
+        else if (cache != null)
+            cache.put(id, entity);
+        Cache<Integer, Object[]> snapshots = this.snapshots;
+        if (snapshots != null)
+            snapshots.put(id, EntityMetadata.of(entity).snapshot(entity));
+        TransactionContext transaction = TransactionContext.current(dataSource);
+        if (transaction != null) {
+            transaction.onRollback(() -> {
+                if (intKeyCache != null)
+                    intKeyCache.invalidate(id);
+                else if (cache != null)
+                    cache.invalidate(id);
+                if (snapshots != null)
+                    snapshots.invalidate(id);
+            });
+        }
+    }
+
+    // cache an entity read outside a transaction, unless the entity cache got one for its id meanwhile:
+    // that one was written (or read) at least as recently, while this row may come from a replica that
+    // has not caught up with the primary yet. returns the cached entity, the one to hand out.
+    private T cacheRead(int id, T entity, boolean fromDatabase) {
+        IntKeyCache<T> intKeyCache = this.intKeyCache;
+        Cache<Integer, T> cache = this.cache;
+        T cached = intKeyCache != null ? intKeyCache.putIfAbsent(id, entity)
+                : cache != null ? cache.putIfAbsent(id, entity) : null;
+        if (cached != null)
+            return cached;
+        readSnapshot(id, entity);
+        if (fromDatabase)
+            secondLevelRead(id, entity);
+        return entity;
+    }
+
+    // remember the column values of an entity just read, for dirty checking. a write of the same id
+    // running meanwhile caches a newer entity and snapshot, which this one may have replaced: it is
+    // then dropped again, and the next update writes every column.
+    private void readSnapshot(int id, T entity) {
+        Cache<Integer, Object[]> snapshots = this.snapshots;
+        if (snapshots == null)
+            return;
+        snapshots.put(id, EntityMetadata.of(entity).snapshot(entity));
+        if (cache != null && cachePeek(id) != entity)
+            snapshots.invalidate(id);
+    }
+
+    // what the entity cache holds for `id`, looked up without it counting as a use: a BoundedCache
+    // neither counts a hit nor promotes the entry, so a scan leaves its rows in probation
+    private T cachePeek(int id) {
+        IntKeyCache<T> intKeyCache = this.intKeyCache;
+        Cache<Integer, T> cache = this.cache;
+        if (intKeyCache != null)
+            return intKeyCache.get(id);
+        if (cache instanceof BoundedCache)
+            return ((BoundedCache<Integer, T>) cache).peek(id);
+        return cache != null ? cache.get(id) : null;
+    }
+
+    // the table of `metadata` was written to or altered: cached query results over it are outdated,
+    // inside a transaction once it commits (other threads cannot see the writes before). loaded lists
+    // of its rows are outdated right away for this thread, and again once the transaction ends, as
+    // other threads may have read the old rows meanwhile or this one the rows of a rollback
+    void tableChanged(EntityMetadata<?> metadata) {
+        Class<?> entityClass = metadata.entityClass();
+        String table = metadata.tableName();
+        LazyList.elementsChanged(entityClass);
+        TransactionContext transaction = TransactionContext.current(dataSource);
+        if (transaction != null) {
+            transaction.onCommit(() -> LazyList.elementsChanged(entityClass));
+            transaction.onRollback(() -> LazyList.elementsChanged(entityClass));
+        }
+        QueryCache queryCache = this.queryCache;
+        if (queryCache == null)
+            return;
+        if (transaction != null)
+            transaction.onCommit(() -> queryCache.invalidate(table));
+        else
+            queryCache.invalidate(table);
+    }
+
+    // drop the entities of rows written without this EntityManager (e.g. by BulkTransfer) from every
+    // cache tier and the dirty-checking snapshots, so the next find selects the new row
+    void evict(Collection<Integer> ids) {
+        Cache<Integer, T> cache = this.cache;
+        Cache<Integer, Object[]> snapshots = this.snapshots;
+        Cache<Integer, T> secondLevelCache = this.secondLevelCache;
+        for (Integer id : ids) {
+            if (cache != null)
+                cache.invalidate(id);
+            if (snapshots != null)
+                snapshots.invalidate(id);
+            if (secondLevelCache != null)
+                secondLevelCache.invalidate(id);
+        }
+    }
+
+    // evict every entity, for writes whose ids are not known
+    void evictAll() {
+        Cache<Integer, T> cache = this.cache;
+        Cache<Integer, Object[]> snapshots = this.snapshots;
+        Cache<Integer, T> secondLevelCache = this.secondLevelCache;
+        if (cache != null)
+            cache.clear();
+        if (snapshots != null)
+            snapshots.clear();
+        if (secondLevelCache != null)
+            secondLevelCache.clear();
+    }
+
+    private T cacheGet(int id) {
+        IntKeyCache<T> intKeyCache = this.intKeyCache;
+        Cache<Integer, T> cache = this.cache;
+        return intKeyCache != null ? intKeyCache.get(id) : cache != null ? cache.get(id) : null;
+    }
+
+    // an entity rebuilt by the second level cache, with lazy associations from `loader` (null if it has none)
+    private T secondLevelGet(int id, AssociationLoader<T> loader) {
+        Cache<Integer, T> secondLevelCache = this.secondLevelCache;
+        if (secondLevelCache == null)
+            return null;
+        T entity = secondLevelCache.get(id);
+        if (entity != null && loader != null)
+            loader.attach(entity);
+        return entity;
+    }
+
+    // the second level cache may outlive the process, so inside a transaction it never gets a row that
+    // could still roll back: the id is only dropped, and dropped again on commit in case a concurrent
+    // lookup stored the old row meanwhile. the next lookup after the commit stores the new row.
+    private void secondLevelPut(int id, T entity) {
+        Cache<Integer, T> secondLevelCache = this.secondLevelCache;
+        if (secondLevelCache == null)
+            return;
+        TransactionContext transaction = TransactionContext.current(dataSource);
+        if (transaction == null) {
+            secondLevelCache.put(id, entity);
+        } else {
+            secondLevelCache.invalidate(id);
+            transaction.onCommit(() -> secondLevelCache.invalidate(id));
+        }
+    }
+
+    // store a row read outside a transaction in the second level cache, unless it holds the id already:
+    // writes keep that entry current, while this row may come from a replica that is behind
+    private void secondLevelRead(int id, T entity) {
+        Cache<Integer, T> secondLevelCache = this.secondLevelCache;
+        if (secondLevelCache != null)
+            secondLevelCache.putIfAbsent(id, entity);
+    }
+
+    // Run work on the connection of the transaction open on this thread, or on a pooled one
+    private <R> R withConnection(ConnectionCallback<R> callback) throws Exception {
+        TransactionContext transaction = TransactionContext.current(dataSource);
+        if (transaction != null)
+            return callback.doWithConnection(transaction.connection());
+        try (Connection connection = dataSource.getConnection()) {
+            return callback.doWithConnection(connection);
+        }
+    }
+
+    // same for reads: outside a transaction they may be served by a replica
+    private <R> R withReadConnection(ConnectionCallback<R> callback) throws Exception {
+        TransactionContext transaction = TransactionContext.current(dataSource);
+        if (transaction != null)
+            return callback.doWithConnection(transaction.connection());
+        try (Connection connection = dataSource.getReadConnection()) {
+            return callback.doWithConnection(connection);
+        }
+    }
+
+    // Execute a transaction with auto-commit disabled.
+    // every EntityManager call inside the callback runs on the transaction's single connection.
     public void executeInTransaction(TransactionCallback<T> callback) throws SQLException {
+        TransactionContext outer = TransactionContext.current(dataSource);
+        if (outer != null) {
+            joinTransaction(outer, callback);
+            return;
+        }
+        long start = System.nanoTime();
         Connection connection = dataSource.getConnection();
+        TransactionContext transaction = null;
         try {
             connection.setAutoCommit(false); // Start transaction
+            transaction = TransactionContext.begin(dataSource, connection);
             callback.doInTransaction(this); // Execute callback
+            if (!transaction.isRollbackOnly())
+                transaction.flush(); // Write the deferred inserts/updates of unit-of-work mode
+            if (transaction.isRollbackOnly())
+                throw new SQLException("a nested transaction failed");
             connection.commit(); // Commit transaction
+            transaction.committed();
             System.out.println("Transaction committed successfully");
         } catch (Exception e) {
             try {
                 connection.rollback(); // Rollback transaction on error
+                if (transaction != null)
+                    transaction.rolledBack();
                 System.out.println("Transaction rolled back due to error: " + e.getMessage());
             } catch (SQLException rollbackException) {
                 rollbackException.printStackTrace();
             }
         } finally {
+            if (transaction != null)
+                transaction.end();
             try {
                 connection.setAutoCommit(true); // Reset auto-commit to true
                 dataSource.returnConnection(connection);
             } catch (SQLException e) {
                 e.printStackTrace();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
             }
+            transactionLatency.record(System.nanoTime() - start);
         }
     }
 
     // Execute a transaction with savepoints to handle partial rollbacks
     public void executeInTransactionWithSavepoints(TransactionCallback<T> callback) throws SQLException {
+        TransactionContext outer = TransactionContext.current(dataSource);
+        if (outer != null) {
+            joinTransaction(outer, callback);
+            return;
+        }
         Savepoint savepoint = null;
+        long start = System.nanoTime();
         Connection connection = dataSource.getConnection();
+        TransactionContext transaction = null;
         try {
             connection.setAutoCommit(false); // Start transaction
+            transaction = TransactionContext.begin(dataSource, connection);
 
             callback.doInTransaction(this);
 
+            if (!transaction.isRollbackOnly())
+                transaction.flush(); // Write the deferred inserts/updates of unit-of-work mode
+            if (transaction.isRollbackOnly())
+                throw new SQLException("a nested transaction failed");
             connection.commit(); // Commit transaction
+            transaction.committed();
             System.out.println("Transaction committed successfully");
 
         } catch (Exception e) {
@@ -347,38 +1234,69 @@ public class EntityManager<T> {
                     System.out.println("Rolled back to savepoint due to error: " + e.getMessage());
                 } else {
                     connection.rollback(); // Rollback transaction if no savepoint
+                    if (transaction != null)
+                        transaction.rolledBack();
                     System.out.println("Transaction rolled back due to error: " + e.getMessage());
                 }
             } catch (SQLException rollbackException) {
                 rollbackException.printStackTrace();
             }
         } finally {
+            if (transaction != null)
+                transaction.end();
             try {
                 connection.setAutoCommit(true); // Reset auto-commit to true
                 dataSource.returnConnection(connection);
             } catch (SQLException e) {
                 e.printStackTrace();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
             }
+            transactionLatency.record(System.nanoTime() - start);
         }
     }
 
+    // A transaction started inside another one on the same data source joins it.
+    // if it fails the outer transaction is rolled back instead of committed.
+    private void joinTransaction(TransactionContext transaction, TransactionCallback<T> callback) {
+        try {
+            callback.doInTransaction(this);
+        } catch (Exception e) {
+            transaction.setRollbackOnly();
+            System.out.println("Nested transaction failed, the outer transaction will roll back: " + e.getMessage());
+        }
+    }
+
+    // the transaction running on this thread, savepoints only exist inside one
+    private TransactionContext savepointTransaction() throws SQLException {
+        TransactionContext transaction = TransactionContext.current(dataSource);
+        if (transaction == null)
+            throw new SQLException("savepoints need a transaction started with executeInTransaction");
+        return transaction;
+    }
+
     // Set a savepoint in the transaction
     public Savepoint setSavepoint(String savepointName) throws SQLException {
-        Savepoint savepoint = dataSource.getConnection().setSavepoint(savepointName);
+        TransactionContext transaction = savepointTransaction();
+        flushDeferredWrites(); // deferred writes made so far belong before the savepoint
+        Savepoint savepoint = transaction.connection().setSavepoint(savepointName);
+        transaction.savepointSet(savepoint);
         System.out.println("savepoint '" + savepointName + "' set.");
         return savepoint;
     }
 
     // Release a savepoint (it cannot be rolled back to once released)
     public void releaseSavepoint(Savepoint savepoint) throws SQLException {
-        dataSource.getConnection().releaseSavepoint(savepoint);
+        TransactionContext transaction = savepointTransaction();
+        transaction.connection().releaseSavepoint(savepoint);
+        transaction.savepointReleased(savepoint);
         System.out.println("savepoint released.");
     }
 
-    // Rollback to a specific savepoint
+    // Rollback to a specific savepoint. entities cached by the writes since then are dropped from the
+    // cache again, like on a full rollback.
     public void rollback(Savepoint savepoint) throws SQLException {
-        dataSource.getConnection().rollback(savepoint);
+        TransactionContext transaction = savepointTransaction();
+        flushDeferredWrites(); // so the rollback undoes the writes deferred since the savepoint as well
+        transaction.connection().rollback(savepoint);
+        transaction.rolledBackTo(savepoint);
     }
 }
@@ -0,0 +1,408 @@
+package org.example;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+// immutable description of an @Entity class: table name, columns, id column and the SQL
+// derived from them. it is resolved once per class and shared by every EntityManager, from the
+// <Entity>_ metamodel generated at compile time when there is one, by reflection otherwise.
+final class EntityMetadata<T> {
+    static final long ALL_COLUMNS = -1L; // changed-column mask meaning "update every column"
+    private static final ConcurrentHashMap<Class<?>, EntityMetadata<?>> registry = new ConcurrentHashMap<>();
+
+    private final Class<T> entityClass;
+    private final String tableName;
+    private final List<ColumnMetadata> columns;
+    private final ColumnMetadata idColumn;
+    private final Map<String, ColumnMetadata> columnsByName;
+    private final Map<String, AssociationMetadata> associations; // by field name
+    private final EntityMetamodel<T> metamodel; // null when the class is introspected
+    private final MethodHandle constructor; // only without a metamodel
+    private final String columnNames;
+    private final String insertSql;
+    private final String insertGeneratedIdSql;
+    private final String selectByIdSql;
+    private final String selectAllSql;
+    private final String selectColumnsSql;
+    private final String updateSql;
+    private final ConcurrentHashMap<Long, String> selectInSql = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, String> partialUpdateSql = new ConcurrentHashMap<>();
+
+    private EntityMetadata(Class<T> entityClass) {
+        this(entityClass, EntityMetamodel.find(entityClass));
+    }
+
+    private EntityMetadata(Class<T> entityClass, EntityMetamodel<T> metamodel) {
+        this.entityClass = entityClass;
+        this.metamodel = metamodel;
+
+        List<ColumnMetadata> columns = new ArrayList<>();
+        ColumnMetadata idColumn = null;
+        Map<String, AssociationMetadata> associations = new LinkedHashMap<>();
+        if (metamodel != null) {
+            this.tableName = metamodel.tableName();
+            for (int i = 0; i < metamodel.columnCount(); i++)
+                columns.add(ColumnMetadata.fromMetamodel(metamodel, i));
+            if (metamodel.idColumn() >= 0)
+                idColumn = columns.get(metamodel.idColumn());
+            for (int i = 0; i < metamodel.associations().size(); i++) {
+                AssociationMetadata association = AssociationMetadata.fromMetamodel(metamodel, i, columns);
+                associations.put(association.name(), association);
+            }
+        } else {
+            if (!entityClass.isAnnotationPresent(Entity.class))
+                throw new RuntimeException("not an entity class");
+            this.tableName = entityClass.getAnnotation(Entity.class).tableName();
+            for (Field field : entityClass.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Column.class)) {
+                    ColumnMetadata column = new ColumnMetadata(field, columns.size());
+                    if (column.isId() && idColumn == null)
+                        idColumn = column;
+                    columns.add(column);
+                } else if (field.isAnnotationPresent(ManyToOne.class)) {
+                    // the reference is stored as an ordinary int column holding the target's id
+                    ColumnMetadata column = ColumnMetadata.foreignKey(field, columns.size());
+                    columns.add(column);
+                    associations.put(field.getName(), AssociationMetadata.manyToOne(field, column));
+                } else if (field.isAnnotationPresent(OneToMany.class)) {
+                    associations.put(field.getName(), AssociationMetadata.oneToMany(field));
+                }
+            }
+        }
+        this.columns = Collections.unmodifiableList(columns);
+        this.associations = Collections.unmodifiableMap(associations);
+        Map<String, ColumnMetadata> columnsByName = new HashMap<>();
+        for (ColumnMetadata column : columns)
+            columnsByName.put(column.name().toLowerCase(Locale.ROOT), column);
+        this.columnsByName = columnsByName;
+        this.idColumn = idColumn;
+        this.columnNames = columns.stream().map(ColumnMetadata::name).collect(Collectors.joining(", "));
+
+        if (metamodel != null) {
+            // the generated SQL constants, built by the processor exactly like below
+            this.constructor = null;
+            this.insertSql = metamodel.insertSql();
+            this.insertGeneratedIdSql = metamodel.insertGeneratedIdSql();
+            this.selectAllSql = "SELECT * FROM " + tableName;
+            this.selectColumnsSql = metamodel.selectColumnsSql();
+            this.selectByIdSql = metamodel.selectByIdSql();
+            this.updateSql = metamodel.updateSql();
+            return;
+        }
+
+        try {
+            this.constructor = MethodHandles.privateLookupIn(entityClass, MethodHandles.lookup())
+                    .findConstructor(entityClass, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new RuntimeException("entity class needs a no-arg constructor", e);
+        }
+
+        this.insertSql = "INSERT INTO " + tableName + " (" +
+                columns.stream().map(ColumnMetadata::name).collect(Collectors.joining(",")) + ") VALUES (" +
+                columns.stream().map(column -> "?").collect(Collectors.joining(",")) + ")";
+        // the id column is left out so the database assigns it (AUTO_INCREMENT)
+        this.insertGeneratedIdSql = "INSERT INTO " + tableName + " (" +
+                columns.stream().filter(column -> !column.isId())
+                        .map(ColumnMetadata::name).collect(Collectors.joining(",")) + ") VALUES (" +
+                columns.stream().filter(column -> !column.isId())
+                        .map(column -> "?").collect(Collectors.joining(",")) + ")";
+        this.selectAllSql = "SELECT * FROM " + tableName;
+        // explicit column list so rows can be read by position in column order
+        this.selectColumnsSql = "SELECT " +
+                columns.stream().map(ColumnMetadata::name).collect(Collectors.joining(",")) + " FROM " + tableName;
+        if (idColumn != null) {
+            this.selectByIdSql = selectColumnsSql + " WHERE " + idColumn.name() + " = ?";
+            this.updateSql = "UPDATE " + tableName + " SET " +
+                    columns.stream().filter(column -> !column.isId())
+                            .map(column -> column.name() + " = ?").collect(Collectors.joining(",")) +
+                    " WHERE " + idColumn.name() + " = ?";
+        } else {
+            this.selectByIdSql = null;
+            this.updateSql = null;
+        }
+    }
+
+    // look up (or resolve on first use) the metadata of an entity class
+    @SuppressWarnings("unchecked")
+    static <T> EntityMetadata<T> of(Class<T> entityClass) {
+        EntityMetadata<?> metadata = registry.get(entityClass);
+        if (metadata == null)
+            metadata = registry.computeIfAbsent(entityClass, EntityMetadata::new);
+        return (EntityMetadata<T>) metadata;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> EntityMetadata<T> of(T entity) {
+        return of((Class<T>) entity.getClass());
+    }
+
+    // metadata resolved by reflection even if the class has a metamodel, and not registered.
+    // lets benchmarks compare the two.
+    static <T> EntityMetadata<T> reflective(Class<T> entityClass) {
+        return new EntityMetadata<>(entityClass, null);
+    }
+
+    // whether this metadata came from a generated metamodel
+    boolean isGenerated() {
+        return metamodel != null;
+    }
+
+    Class<T> entityClass() {
+        return entityClass;
+    }
+
+    String tableName() {
+        return tableName;
+    }
+
+    List<ColumnMetadata> columns() {
+        return columns;
+    }
+
+    // the column mapped to `name` (case-insensitive), used to validate names passed in by callers
+    ColumnMetadata column(String name) {
+        ColumnMetadata column = columnsByName.get(name.toLowerCase(Locale.ROOT));
+        if (column == null)
+            throw new RuntimeException("no column " + name + " in " + entityClass.getSimpleName());
+        return column;
+    }
+
+    // the @ManyToOne / @OneToMany field called `name`
+    AssociationMetadata association(String name) {
+        AssociationMetadata association = associations.get(name);
+        if (association == null)
+            throw new RuntimeException("no association " + name + " in " + entityClass.getSimpleName());
+        return association;
+    }
+
+    Collection<AssociationMetadata> associations() {
+        return associations.values();
+    }
+
+    boolean hasAssociations() {
+        return !associations.isEmpty();
+    }
+
+    // comma separated column names, used for logging
+    String columnNames() {
+        return columnNames;
+    }
+
+    boolean hasId() {
+        return idColumn != null;
+    }
+
+    ColumnMetadata idColumn() {
+        if (idColumn == null)
+            throw new RuntimeException("no Id field found");
+        return idColumn;
+    }
+
+    @SuppressWarnings("unchecked")
+    T newInstance() {
+        if (metamodel != null)
+            return metamodel.newInstance();
+        try {
+            return (T) (Object) constructor.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException("cannot instantiate " + entityClass.getName(), e);
+        }
+    }
+
+    // build an entity from the current row of a result set selected with selectColumnsSql()
+    T hydrate(ResultSet rs) throws SQLException {
+        return hydrate(rs, 0);
+    }
+
+    // same, for a row whose columns of this entity start after the first `offset` ones (a joined table)
+    T hydrate(ResultSet rs, int offset) throws SQLException {
+        if (metamodel != null)
+            return metamodel.hydrate(rs, offset);
+        T entity = newInstance();
+        for (ColumnMetadata column : columns)
+            column.read(rs, offset + column.index() + 1, entity);
+        return entity;
+    }
+
+    // bind every column, in column order, as the parameters of insertSql()
+    void bindInsert(PreparedStatement statement, T entity) throws SQLException {
+        for (ColumnMetadata column : columns)
+            column.bind(statement, column.index() + 1, entity);
+    }
+
+    // bind the non-id columns, in column order, as the parameters of insertGeneratedIdSql()
+    void bindInsertGeneratedId(PreparedStatement statement, T entity) throws SQLException {
+        int parameterIndex = 1;
+        for (ColumnMetadata column : columns) {
+            if (!column.isId())
+                column.bind(statement, parameterIndex++, entity);
+        }
+    }
+
+    // an entity whose int id is still 0 has not been saved yet and gets its id from the database
+    boolean needsGeneratedId(T entity) {
+        return idColumn != null && idColumn.type() == int.class && ((Integer) idColumn.get(entity)) == 0;
+    }
+
+    int id(T entity) {
+        return ((Number) idColumn().get(entity)).intValue();
+    }
+
+    // bind the non-id columns followed by the id, as the parameters of updateSql()
+    void bindUpdate(PreparedStatement statement, T entity) throws SQLException {
+        int parameterIndex = 1;
+        for (ColumnMetadata column : columns) {
+            if (!column.isId())
+                column.bind(statement, parameterIndex++, entity);
+        }
+        idColumn().bind(statement, parameterIndex, entity);
+    }
+
+    // the current value of every column, in column order, kept to detect changes on update
+    Object[] snapshot(T entity) {
+        Object[] values = new Object[columns.size()];
+        for (ColumnMetadata column : columns)
+            values[column.index()] = column.get(entity);
+        return values;
+    }
+
+    // bit i is set when non-id column i differs from the snapshot, ALL_COLUMNS when a changed
+    // column does not fit in the mask
+    long changedColumns(T entity, Object[] snapshot) {
+        long changed = 0;
+        for (ColumnMetadata column : columns) {
+            if (column.isId() || Objects.equals(snapshot[column.index()], column.get(entity)))
+                continue;
+            if (column.index() >= Long.SIZE - 1)
+                return ALL_COLUMNS;
+            changed |= 1L << column.index();
+        }
+        return changed;
+    }
+
+    // UPDATE ... SET of only the columns in `changedColumns`, one statement per column set
+    String updateSql(long changedColumns) {
+        if (changedColumns == ALL_COLUMNS)
+            return updateSql();
+        String sql = partialUpdateSql.get(changedColumns);
+        if (sql == null) {
+            sql = "UPDATE " + tableName + " SET " +
+                    columns.stream().filter(column -> isSet(changedColumns, column))
+                            .map(column -> column.name() + " = ?").collect(Collectors.joining(",")) +
+                    " WHERE " + idColumn().name() + " = ?";
+            partialUpdateSql.putIfAbsent(changedColumns, sql);
+        }
+        return sql;
+    }
+
+    // bind the changed columns followed by the id, as the parameters of updateSql(changedColumns)
+    void bindUpdate(PreparedStatement statement, T entity, long changedColumns) throws SQLException {
+        if (changedColumns == ALL_COLUMNS) {
+            bindUpdate(statement, entity);
+            return;
+        }
+        int parameterIndex = 1;
+        for (ColumnMetadata column : columns) {
+            if (isSet(changedColumns, column))
+                column.bind(statement, parameterIndex++, entity);
+        }
+        idColumn().bind(statement, parameterIndex, entity);
+    }
+
+    // names of the columns in the mask, used for logging
+    String columnNames(long changedColumns) {
+        if (changedColumns == ALL_COLUMNS)
+            return columnNames;
+        return columns.stream().filter(column -> isSet(changedColumns, column))
+                .map(ColumnMetadata::name).collect(Collectors.joining(", "));
+    }
+
+    private static boolean isSet(long changedColumns, ColumnMetadata column) {
+        return !column.isId() && column.index() < Long.SIZE - 1 && (changedColumns & (1L << column.index())) != 0;
+    }
+
+    String insertSql() {
+        return insertSql;
+    }
+
+    String insertGeneratedIdSql() {
+        return insertGeneratedIdSql;
+    }
+
+    String selectByIdSql() {
+        idColumn();
+        return selectByIdSql;
+    }
+
+    // SELECT ... WHERE id IN (?, ?, ...) with `count` placeholders, built once per count
+    String selectByIdsSql(int count) {
+        return selectInSql(idColumn(), count);
+    }
+
+    // SELECT ... WHERE column IN (?, ?, ...) with `count` placeholders, built once per column and count
+    String selectInSql(ColumnMetadata column, int count) {
+        long key = (long) column.index() << 32 | count;
+        String sql = selectInSql.get(key);
+        if (sql == null) {
+            sql = selectColumnsSql + " WHERE " + column.name() + " IN (" +
+                    String.join(",", Collections.nCopies(count, "?")) + ")";
+            selectInSql.putIfAbsent(key, sql);
+        }
+        return sql;
+    }
+
+    String selectAllSql() {
+        return selectAllSql;
+    }
+
+    String selectColumnsSql() {
+        return selectColumnsSql;
+    }
+
+    String updateSql() {
+        idColumn();
+        return updateSql;
+    }
+
+    // DDL is rare, so it is built on demand rather than kept around
+    String createTableSql() {
+        StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(tableName).append(" (");
+        for (ColumnMetadata column : columns) {
+            sql.append(column.name()).append(" ");
+            if (column.isId()) {
+                sql.append("INT PRIMARY KEY AUTO_INCREMENT,");
+            } else {
+                // Simplified type mapping
+                if (column.type() == String.class) {
+                    sql.append("VARCHAR(255),");
+                } else if (column.type() == int.class) {
+                    sql.append("INT,");
+                } else {
+                    throw new RuntimeException("Unsupported field type");
+                }
+            }
+        }
+        sql.setLength(sql.length() - 1); // Remove trailing comma
+        sql.append(")");
+        return sql.toString();
+    }
+}
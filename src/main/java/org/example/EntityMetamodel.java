@@ -0,0 +1,167 @@
+package org.example;
+
+import java.lang.reflect.Constructor;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+// base class of the <Entity>_ classes MetamodelProcessor writes at compile time. a metamodel knows
+// the table, the columns in declaration order and the SQL as constants, and moves values with plain
+// getter/setter/constructor calls, so EntityMetadata does not have to introspect the entity class.
+// columns and associations are addressed by their index in declaration order.
+public abstract class EntityMetamodel<T> {
+    private final Class<T> entityClass;
+    private final String tableName;
+    private final String[] columnNames;
+    private final Class<?>[] columnTypes;
+    private final int idColumn; // -1 when the entity has no @Id
+    private final List<Association> associations = new ArrayList<>();
+
+    protected EntityMetamodel(Class<T> entityClass, String tableName, String[] columnNames,
+                              Class<?>[] columnTypes, int idColumn) {
+        this.entityClass = entityClass;
+        this.tableName = tableName;
+        this.columnNames = columnNames;
+        this.columnTypes = columnTypes;
+        this.idColumn = idColumn;
+    }
+
+    // declare the next association: a @ManyToOne field stored through column `column`
+    protected final void manyToOne(String name, Class<?> targetClass, int column) {
+        associations.add(new Association(name, true, targetClass, column, null));
+    }
+
+    // declare the next association: a @OneToMany field mapped by the `mappedBy` field of the target
+    protected final void oneToMany(String name, Class<?> targetClass, String mappedBy) {
+        associations.add(new Association(name, false, targetClass, -1, mappedBy));
+    }
+
+    protected abstract T newInstance();
+
+    // an entity built from the current row, whose columns start after the first `offset` ones
+    protected abstract T hydrate(ResultSet rs, int offset) throws SQLException;
+
+    // boxed value of a column, references as their target's id
+    protected abstract Object get(T entity, int column);
+
+    protected abstract void set(T entity, int column, Object value);
+
+    protected abstract void read(T entity, int column, ResultSet rs, int columnIndex) throws SQLException;
+
+    protected abstract void bind(T entity, int column, PreparedStatement statement, int parameterIndex) throws SQLException;
+
+    protected abstract Object getAssociation(T entity, int association);
+
+    protected abstract void setAssociation(T entity, int association, Object value);
+
+    protected abstract String insertSql();
+
+    protected abstract String insertGeneratedIdSql();
+
+    protected abstract String selectColumnsSql();
+
+    // null when the entity has no @Id, like updateSql()
+    protected abstract String selectByIdSql();
+
+    protected abstract String updateSql();
+
+    // helpers for the generated code
+
+    protected static <R> Reference<R> readReference(ResultSet rs, int columnIndex) throws SQLException {
+        int id = rs.getInt(columnIndex);
+        return rs.wasNull() ? null : Reference.toId(id);
+    }
+
+    protected static void bindReference(PreparedStatement statement, int parameterIndex, Reference<?> reference) throws SQLException {
+        if (reference == null)
+            statement.setNull(parameterIndex, Types.INTEGER);
+        else
+            statement.setInt(parameterIndex, reference.id());
+    }
+
+    protected static Integer referenceId(Reference<?> reference) {
+        return reference == null ? null : reference.id();
+    }
+
+    protected static <R> Reference<R> reference(Object id) {
+        return id == null ? null : Reference.toId(((Number) id).intValue());
+    }
+
+    protected static IllegalArgumentException noSuchColumn(int column) {
+        return new IllegalArgumentException("no column " + column);
+    }
+
+    protected static IllegalArgumentException noSuchAssociation(int association) {
+        return new IllegalArgumentException("no association " + association);
+    }
+
+    // the generated metamodel of `entityClass`, or null when it was compiled without the processor
+    @SuppressWarnings("unchecked")
+    static <T> EntityMetamodel<T> find(Class<T> entityClass) {
+        Class<?> metamodelClass;
+        try {
+            metamodelClass = Class.forName(entityClass.getName() + "_", true, entityClass.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        if (!EntityMetamodel.class.isAssignableFrom(metamodelClass))
+            return null;
+        try {
+            Constructor<?> constructor = metamodelClass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            EntityMetamodel<T> metamodel = (EntityMetamodel<T>) constructor.newInstance();
+            // the same class name loaded by another class loader is a different entity class
+            return metamodel.entityClass == entityClass ? metamodel : null;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("cannot instantiate " + metamodelClass.getName(), e);
+        }
+    }
+
+    Class<T> entityClass() {
+        return entityClass;
+    }
+
+    String tableName() {
+        return tableName;
+    }
+
+    int columnCount() {
+        return columnNames.length;
+    }
+
+    String columnName(int column) {
+        return columnNames[column];
+    }
+
+    Class<?> columnType(int column) {
+        return columnTypes[column];
+    }
+
+    int idColumn() {
+        return idColumn;
+    }
+
+    List<Association> associations() {
+        return associations;
+    }
+
+    // an association as declared by the generated constructor
+    static final class Association {
+        final String name;
+        final boolean manyToOne;
+        final Class<?> targetClass;
+        final int column;
+        final String mappedBy;
+
+        Association(String name, boolean manyToOne, Class<?> targetClass, int column, String mappedBy) {
+            this.name = name;
+            this.manyToOne = manyToOne;
+            this.targetClass = targetClass;
+            this.column = column;
+            this.mappedBy = mappedBy;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package org.example;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+// reads and writes one entity field without going through java.lang.reflect.Field on every row.
+// int and String columns (the types createTable supports) get typed accessors that move values
+// between the entity and JDBC without boxing; any other type falls back to getObject/setObject.
+abstract class FieldAccessor {
+
+    // boxed access, used for logging and for ids
+    abstract Object get(Object entity);
+
+    abstract void set(Object entity, Object value);
+
+    // copy column `columnIndex` of the current row into the entity
+    abstract void read(ResultSet rs, int columnIndex, Object entity) throws SQLException;
+
+    // bind the field value as parameter `parameterIndex`
+    abstract void bind(PreparedStatement statement, int parameterIndex, Object entity) throws SQLException;
+
+    // build an accessor for a field backed by method handles
+    static FieldAccessor forField(Field field) {
+        MethodHandle getter;
+        MethodHandle setter;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(field.getDeclaringClass(), MethodHandles.lookup());
+            getter = lookup.unreflectGetter(field);
+            setter = lookup.unreflectSetter(field);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("cannot access field " + field.getName(), e);
+        }
+
+        if (field.getType() == int.class) {
+            return new MethodHandleIntAccessor(
+                    getter.asType(MethodType.methodType(int.class, Object.class)),
+                    setter.asType(MethodType.methodType(void.class, Object.class, int.class)));
+        } else if (field.getType() == String.class) {
+            return new MethodHandleStringAccessor(
+                    getter.asType(MethodType.methodType(String.class, Object.class)),
+                    setter.asType(MethodType.methodType(void.class, Object.class, String.class)));
+        } else {
+            return new MethodHandleObjectAccessor(
+                    getter.asType(MethodType.methodType(Object.class, Object.class)),
+                    setter.asType(MethodType.methodType(void.class, Object.class, Object.class)));
+        }
+    }
+
+    // accessor for a @ManyToOne Reference field: the column value is the id of the referenced entity
+    static FieldAccessor forReference(Field field) {
+        return new ReferenceAccessor(forField(field));
+    }
+
+    // accessor for column `column` of a generated metamodel, no reflection involved
+    static FieldAccessor forMetamodel(EntityMetamodel<?> metamodel, int column) {
+        return new MetamodelAccessor(metamodel, column);
+    }
+
+    // base class for int fields
+    abstract static class IntAccessor extends FieldAccessor {
+        abstract int getInt(Object entity);
+
+        abstract void setInt(Object entity, int value);
+
+        @Override
+        Object get(Object entity) {
+            return getInt(entity);
+        }
+
+        @Override
+        void set(Object entity, Object value) {
+            setInt(entity, value == null ? 0 : ((Number) value).intValue());
+        }
+
+        @Override
+        void read(ResultSet rs, int columnIndex, Object entity) throws SQLException {
+            setInt(entity, rs.getInt(columnIndex));
+        }
+
+        @Override
+        void bind(PreparedStatement statement, int parameterIndex, Object entity) throws SQLException {
+            statement.setInt(parameterIndex, getInt(entity));
+        }
+    }
+
+    // base class for String fields
+    abstract static class StringAccessor extends FieldAccessor {
+        abstract String getString(Object entity);
+
+        abstract void setString(Object entity, String value);
+
+        @Override
+        Object get(Object entity) {
+            return getString(entity);
+        }
+
+        @Override
+        void set(Object entity, Object value) {
+            setString(entity, (String) value);
+        }
+
+        @Override
+        void read(ResultSet rs, int columnIndex, Object entity) throws SQLException {
+            setString(entity, rs.getString(columnIndex));
+        }
+
+        @Override
+        void bind(PreparedStatement statement, int parameterIndex, Object entity) throws SQLException {
+            statement.setString(parameterIndex, getString(entity));
+        }
+    }
+
+    private static final class MethodHandleIntAccessor extends IntAccessor {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        MethodHandleIntAccessor(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        @Override
+        int getInt(Object entity) {
+            try {
+                return (int) getter.invokeExact(entity);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        void setInt(Object entity, int value) {
+            try {
+                setter.invokeExact(entity, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+    }
+
+    private static final class MethodHandleStringAccessor extends StringAccessor {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        MethodHandleStringAccessor(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        @Override
+        String getString(Object entity) {
+            try {
+                return (String) getter.invokeExact(entity);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        void setString(Object entity, String value) {
+            try {
+                setter.invokeExact(entity, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+    }
+
+    private static final class MethodHandleObjectAccessor extends FieldAccessor {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        MethodHandleObjectAccessor(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        @Override
+        Object get(Object entity) {
+            try {
+                return (Object) getter.invokeExact(entity);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        void set(Object entity, Object value) {
+            try {
+                setter.invokeExact(entity, value);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        void read(ResultSet rs, int columnIndex, Object entity) throws SQLException {
+            set(entity, rs.getObject(columnIndex));
+        }
+
+        @Override
+        void bind(PreparedStatement statement, int parameterIndex, Object entity) throws SQLException {
+            statement.setObject(parameterIndex, get(entity));
+        }
+    }
+
+    // boxed access returns the referenced id (null for no reference), so snapshots compare ids
+    private static final class ReferenceAccessor extends FieldAccessor {
+        private final FieldAccessor field;
+
+        ReferenceAccessor(FieldAccessor field) {
+            this.field = field;
+        }
+
+        @Override
+        Object get(Object entity) {
+            Reference<?> reference = (Reference<?>) field.get(entity);
+            return reference == null ? null : reference.id();
+        }
+
+        @Override
+        void set(Object entity, Object value) {
+            field.set(entity, value == null ? null : Reference.toId(((Number) value).intValue()));
+        }
+
+        @Override
+        void read(ResultSet rs, int columnIndex, Object entity) throws SQLException {
+            int id = rs.getInt(columnIndex);
+            field.set(entity, rs.wasNull() ? null : Reference.toId(id));
+        }
+
+        @Override
+        void bind(PreparedStatement statement, int parameterIndex, Object entity) throws SQLException {
+            Reference<?> reference = (Reference<?>) field.get(entity);
+            if (reference == null)
+                statement.setNull(parameterIndex, Types.INTEGER);
+            else
+                statement.setInt(parameterIndex, reference.id());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final class MetamodelAccessor extends FieldAccessor {
+        private final EntityMetamodel<Object> metamodel;
+        private final int column;
+
+        MetamodelAccessor(EntityMetamodel<?> metamodel, int column) {
+            this.metamodel = (EntityMetamodel<Object>) metamodel;
+            this.column = column;
+        }
+
+        @Override
+        Object get(Object entity) {
+            return metamodel.get(entity, column);
+        }
+
+        @Override
+        void set(Object entity, Object value) {
+            metamodel.set(entity, column, value);
+        }
+
+        @Override
+        void read(ResultSet rs, int columnIndex, Object entity) throws SQLException {
+            metamodel.read(entity, column, rs, columnIndex);
+        }
+
+        @Override
+        void bind(PreparedStatement statement, int parameterIndex, Object entity) throws SQLException {
+            metamodel.bind(entity, column, statement, parameterIndex);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException)
+            return (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        return new RuntimeException(e);
+    }
+}
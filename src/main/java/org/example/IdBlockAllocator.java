@@ -0,0 +1,107 @@
+package org.example;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.List;
+
+// hands out ids that are unique across all shards, so the id of a new row decides its shard before
+// it is inserted. ids are reserved blockSize at a time in the orm_id_block table of the first shard
+// (hi/lo), so only one insert in blockSize needs a round trip, and several processes can share it.
+final class IdBlockAllocator {
+    static final String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS orm_id_block " +
+            "(table_name VARCHAR(255) PRIMARY KEY, next_block BIGINT NOT NULL)";
+
+    private final List<? extends PooledDataSource> shards;
+    private final String tableName;
+    private final String idColumn;
+    private final int blockSize;
+    private long next; // next id to hand out
+    private long limit; // first id past the reserved block
+
+    IdBlockAllocator(List<? extends PooledDataSource> shards, EntityMetadata<?> metadata, int blockSize) {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("id block size must be positive");
+        this.shards = shards;
+        this.tableName = metadata.tableName();
+        this.idColumn = metadata.idColumn().name();
+        this.blockSize = blockSize;
+    }
+
+    synchronized int nextId() throws SQLException {
+        if (next >= limit)
+            reserveBlock();
+        return (int) next++;
+    }
+
+    private void reserveBlock() throws SQLException {
+        try (Connection connection = shards.get(0).getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                long block = reserve(connection);
+                connection.commit();
+                if ((block + 1) * blockSize > Integer.MAX_VALUE)
+                    throw new SQLException("ids of " + tableName + " are exhausted");
+                next = Math.max(block * blockSize, 1); // 0 means "no id yet"
+                limit = (block + 1) * blockSize;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    // the number of the block this call owns
+    private long reserve(Connection connection) throws SQLException {
+        while (true) {
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE orm_id_block SET next_block = next_block + 1 WHERE table_name = ?")) {
+                update.setString(1, tableName);
+                if (update.executeUpdate() == 1) {
+                    try (PreparedStatement select = connection.prepareStatement(
+                            "SELECT next_block FROM orm_id_block WHERE table_name = ?")) {
+                        select.setString(1, tableName);
+                        try (ResultSet rs = select.executeQuery()) {
+                            rs.next();
+                            return rs.getLong(1) - 1;
+                        }
+                    }
+                }
+            }
+            // first block of this table: start above every id already stored on any shard
+            long first = firstFreeBlock(connection);
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO orm_id_block (table_name, next_block) VALUES (?, ?)")) {
+                insert.setString(1, tableName);
+                insert.setLong(2, first + 1);
+                insert.executeUpdate();
+                return first;
+            } catch (SQLIntegrityConstraintViolationException e) {
+                // another process created the row first, take a block from it instead
+                connection.rollback();
+            }
+        }
+    }
+
+    private long firstFreeBlock(Connection firstShard) throws SQLException {
+        long maxId = maxId(firstShard);
+        for (PooledDataSource shard : shards.subList(1, shards.size())) {
+            try (Connection connection = shard.getConnection()) {
+                maxId = Math.max(maxId, maxId(connection));
+            }
+        }
+        return maxId / blockSize + 1;
+    }
+
+    private long maxId(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT MAX(" + idColumn + ") FROM " + tableName)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.example;
+
+import java.util.Objects;
+import java.util.concurrent.locks.StampedLock;
+
+// an unbounded entity cache keyed by primitive int ids, for very large caches. CustomCache pays a
+// ConcurrentHashMap node plus an Integer for every entry (about 50 bytes next to the entity); here
+// the ids and entities sit side by side in an int[] and an Object[] (open addressing with linear
+// probing), about 12-16 bytes per entry, and the int overloads never box the id.
+//
+// the table is split into independently locked stripes. reads are optimistic: they take no lock and
+// only retry under a read lock when a write to the same stripe ran meanwhile. EntityManager uses
+// the int overloads when it is given an IntKeyCache.
+public class IntKeyCache<V> implements Cache<Integer, V> {
+    private static final int INITIAL_STRIPE_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private final Stripe[] stripes;
+    private final int stripeShift; // the top bits of the hash pick the stripe, the low bits the slot
+    private final SingleFlight<Integer, V> loads = new SingleFlight<>();
+
+    public IntKeyCache() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    // `concurrency` is rounded up to a power of two stripes
+    public IntKeyCache(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("concurrency must be positive");
+        int stripeCount = Integer.highestOneBit(Math.min(concurrency, 1 << 16) * 2 - 1);
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+            stripes[i] = new Stripe();
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros(stripeCount);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int hash = hash(key);
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.tryOptimisticRead();
+        Object value = stripe.find(key, hash);
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                value = stripe.find(key, hash);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return (V) value;
+    }
+
+    public void put(int key, V value) {
+        put(key, value, false);
+    }
+
+    // cache `value` unless the key already has one, and return that one (null when `value` was cached)
+    public V putIfAbsent(int key, V value) {
+        return put(key, value, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V put(int key, V value, boolean onlyIfAbsent) {
+        Objects.requireNonNull(value, "value");
+        int hash = hash(key);
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            return (V) stripe.put(key, hash, value, onlyIfAbsent);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    public void invalidate(int key) {
+        int hash = hash(key);
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            stripe.remove(key, hash);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    // concurrent misses for the same key wait for one load instead of each running it. only a miss
+    // boxes the key.
+    public V getOrLoad(int key, CacheLoader<? super Integer, ? extends V> loader) throws Exception {
+        V value = get(key);
+        if (value != null)
+            return value;
+        return loads.load(key, k -> {
+            // it may have been loaded by a flight that finished just before this one started
+            V loaded = get(key);
+            if (loaded == null) {
+                loaded = loader.load(k);
+                // a put while the loader ran (e.g. by an update) holds a newer value than the load
+                if (loaded != null) {
+                    V newer = putIfAbsent(key, loaded);
+                    if (newer != null)
+                        loaded = newer;
+                }
+            }
+            return loaded;
+        });
+    }
+
+    @Override
+    public V get(Integer key) {
+        return get(key.intValue());
+    }
+
+    @Override
+    public void put(Integer key, V value) {
+        put(key.intValue(), value);
+    }
+
+    @Override
+    public V putIfAbsent(Integer key, V value) {
+        return putIfAbsent(key.intValue(), value);
+    }
+
+    @Override
+    public V getOrLoad(Integer key, CacheLoader<? super Integer, ? extends V> loader) throws Exception {
+        return getOrLoad(key.intValue(), loader);
+    }
+
+    @Override
+    public void invalidate(Integer key) {
+        invalidate(key.intValue());
+    }
+
+    @Override
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.writeLock();
+            try {
+                stripe.clear();
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    // number of entries, not a consistent snapshot while writes are running
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                size += stripe.size;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripeFor(int hash) {
+        return stripes[stripes.length == 1 ? 0 : hash >>> stripeShift];
+    }
+
+    // fibonacci hashing, folded so the high bits also reach the slot: sequential ids spread over every
+    // stripe and slot
+    private static int hash(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    // one open addressing table. a slot is free when its value is null, so every int is a valid key.
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        Table table = new Table(INITIAL_STRIPE_CAPACITY);
+        int size;
+
+        // may run without the lock (an optimistic read), so it reads the table once and never
+        // trusts a probe to terminate on its own
+        Object find(int key, int hash) {
+            Table table = this.table;
+            int mask = table.keys.length - 1;
+            for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                Object value = table.values[i];
+                if (value == null)
+                    return null;
+                if (table.keys[i] == key)
+                    return value;
+            }
+            return null;
+        }
+
+        // returns the value the key had, or null
+        Object put(int key, int hash, Object value, boolean onlyIfAbsent) {
+            Table table = this.table;
+            int mask = table.keys.length - 1;
+            int i = hash & mask;
+            while (table.values[i] != null) {
+                if (table.keys[i] == key) {
+                    Object existing = table.values[i];
+                    if (!onlyIfAbsent)
+                        table.values[i] = value;
+                    return existing;
+                }
+                i = (i + 1) & mask;
+            }
+            table.keys[i] = key;
+            table.values[i] = value;
+            if (++size > table.keys.length * LOAD_FACTOR)
+                resize();
+            return null;
+        }
+
+        // backward shift deletion: the entries after the removed one move up to where a lookup
+        // starting at their home slot finds them, so no tombstones are needed
+        void remove(int key, int hash) {
+            Table table = this.table;
+            int mask = table.keys.length - 1;
+            int i = hash & mask;
+            while (table.keys[i] != key || table.values[i] == null) {
+                if (table.values[i] == null)
+                    return;
+                i = (i + 1) & mask;
+            }
+            for (int j = (i + 1) & mask; table.values[j] != null; j = (j + 1) & mask) {
+                int home = hash(table.keys[j]) & mask;
+                // entry j may fill the gap at i unless its home slot lies cyclically in (i, j]
+                boolean homeBetween = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (!homeBetween) {
+                    table.keys[i] = table.keys[j];
+                    table.values[i] = table.values[j];
+                    i = j;
+                }
+            }
+            table.values[i] = null;
+            size--;
+        }
+
+        void clear() {
+            table = new Table(INITIAL_STRIPE_CAPACITY);
+            size = 0;
+        }
+
+        // a new table is published whole, so an optimistic reader sees either the old or the new one
+        private void resize() {
+            Table old = this.table;
+            Table table = new Table(old.keys.length * 2);
+            int mask = table.keys.length - 1;
+            for (int j = 0; j < old.keys.length; j++) {
+                if (old.values[j] == null)
+                    continue;
+                int i = hash(old.keys[j]) & mask;
+                while (table.values[i] != null)
+                    i = (i + 1) & mask;
+                table.keys[i] = old.keys[j];
+                table.values[i] = old.values[j];
+            }
+            this.table = table;
+        }
+    }
+
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new Object[capacity];
+        }
+    }
+}
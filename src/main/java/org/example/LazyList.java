@@ -0,0 +1,99 @@
+package org.example;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// the value of a @OneToMany field: a read-only list loaded on first use. a write of rows of the element
+// class through any EntityManager may add, move or change elements, so a list loaded before it reads
+// its elements again on the next use, also when its parent is served from the entity cache.
+final class LazyList<E> extends AbstractList<E> {
+    // per element class, bumped whenever its rows are written through an EntityManager
+    private static final ConcurrentHashMap<Class<?>, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    private final Object parent;
+    private final int parentId;
+    private final EntityManager<?> entityManager; // reads the elements again once they are outdated
+    private final AssociationMetadata association;
+    private AssociationLoader.Batch<LazyList<E>> batch; // null once loaded
+    private List<E> elements; // null until loaded
+    private long version; // of the element class, read before the elements were selected
+
+    LazyList(Object parent, int parentId, EntityManager<?> entityManager, AssociationMetadata association,
+             AssociationLoader.Batch<LazyList<E>> batch) {
+        this.parent = parent;
+        this.parentId = parentId;
+        this.entityManager = entityManager;
+        this.association = association;
+        this.batch = batch;
+    }
+
+    static long version(Class<?> elementClass) {
+        AtomicLong version = versions.get(elementClass);
+        return version == null ? 0 : version.get();
+    }
+
+    // rows of `elementClass` were written: every list of them loaded so far is outdated
+    static void elementsChanged(Class<?> elementClass) {
+        versions.computeIfAbsent(elementClass, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    // the entity owning the list
+    Object parent() {
+        return parent;
+    }
+
+    int parentId() {
+        return parentId;
+    }
+
+    synchronized boolean isLoaded() {
+        return elements != null;
+    }
+
+    // `elements` were selected at `version` of the element class
+    void resolve(List<E> elements, long version) {
+        AssociationLoader.Batch<LazyList<E>> batch;
+        synchronized (this) {
+            this.elements = List.copyOf(elements);
+            this.version = version;
+            batch = this.batch;
+            this.batch = null;
+        }
+        // outside this list's lock, as the batch looks at its lists while holding its own
+        if (batch != null)
+            batch.remove(this);
+    }
+
+    private List<E> elements() {
+        AssociationLoader.Batch<LazyList<E>> batch;
+        synchronized (this) {
+            if (elements != null && version == version(association.targetClass()))
+                return elements;
+            batch = this.batch;
+        }
+        if (batch != null)
+            batch.load(this);
+        else
+            AssociationLoader.reload(entityManager, association, this);
+        synchronized (this) {
+            return elements;
+        }
+    }
+
+    @Override
+    public E get(int index) {
+        return elements().get(index);
+    }
+
+    @Override
+    public int size() {
+        return elements().size();
+    }
+
+    @Override
+    public String toString() {
+        return isLoaded() ? elements().toString() : "[not loaded]";
+    }
+}
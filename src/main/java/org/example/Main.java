@@ -2,19 +2,37 @@ package org.example;
 
 
 import java.sql.*;
+import java.time.Duration;
 
 public class Main {
     public static void main(String[] args) {
-        var dataSource = new CustomDataSource();
-        Cache<Integer, Customer> customCache = new CustomCache<>();
+        // writes go to db.url, reads outside transactions to the db.replica.urls (if any)
+        var dataSource = new RoutingDataSource();
+        // ids stay primitive ints: no Integer and no map node per cached customer
+        Cache<Integer, Customer> customCache = new IntKeyCache<>();
         try {
             EntityManager<Customer> customerEntityManager = new EntityManager<>(dataSource, customCache);
+            // customers are also kept as binary rows off the heap, tried before the database on a cache miss.
+            // new OffHeapCache<>(Customer.class, 64 << 20, Path.of("customer-cache.bin")) would keep them
+            // in a memory-mapped file that survives a restart
+            OffHeapCache<Customer> customerRows = new OffHeapCache<>(Customer.class, 64 << 20);
+            customerRows.registerMetrics(MetricsRegistry.defaultRegistry(), "orm.offheap.customer");
+            customerEntityManager.setSecondLevelCache(customerRows);
             EntityManager<User> userEntityManager = new EntityManager<>(dataSource, null);
+            EntityManager<CustomerOrder> orderEntityManager = new EntityManager<>(dataSource, new CustomCache<>());
+            // caches query results as id lists, dropped when one of these EntityManagers writes to the table
+            QueryCache queryCache = new QueryCache(100_000, Duration.ofMinutes(5));
+            queryCache.registerMetrics(MetricsRegistry.defaultRegistry(), "orm.querycache");
+            customerEntityManager.setQueryCache(queryCache);
+            orderEntityManager.setQueryCache(queryCache);
+            // queues and coalesces frequent updates, flushing them in batches in the background
+            WriteBehindWriter<Customer> customerWriter = new WriteBehindWriter<>(customerEntityManager);
 
             // create a user table
             userEntityManager.createTable(User.class);
 
             customerEntityManager.createTable(Customer.class);
+            orderEntityManager.createTable(CustomerOrder.class);
             // alter table
             // dbSchema.addColumn(Customer.class, "email", "VARCHAR(255)");
 
@@ -69,25 +87,48 @@ public class Main {
             customer.setLastName("sh");
             customerEntityManager.insert(customer);
 
-            // find by id
-            Customer foundCustomer = customerEntityManager.find(Customer.class, 4);
+            // find by id, insert has written the generated id back and cached the customer
+            Customer foundCustomer = customerEntityManager.find(Customer.class, customer.getId());
             if (foundCustomer != null)
                 System.out.println("found customer: " + foundCustomer.getFirstName() + " " + foundCustomer.getLastName());
             // this will be return from cache
-            Customer checkCache = customerEntityManager.find(Customer.class, 4);
+            Customer checkCache = customerEntityManager.find(Customer.class, customer.getId());
 
             // update an existing customer
             if (foundCustomer != null) {
                 foundCustomer.setFirstName("Jane");
                 customerEntityManager.update(foundCustomer);
+
+                // write-behind: only the last of these updates reaches the database
+                for (int visit = 1; visit <= 3; visit++) {
+                    foundCustomer.setLastName("visit-" + visit);
+                    customerWriter.update(foundCustomer);
+                }
+                customerWriter.flush();
+
+                // relationships: the order stores the customer's id, the customer's orders load on first use
+                CustomerOrder order = new CustomerOrder();
+                order.setProduct("book");
+                order.setCustomer(Reference.to(foundCustomer));
+                orderEntityManager.insert(order);
+                for (CustomerOrder customerOrder : foundCustomer.getOrders())
+                    System.out.println("order: " + customerOrder.getProduct());
             }
 
              // select and print all records
              customerEntityManager.selectAndPrintAll(Customer.class);
 
+            // latencies (in nanoseconds), cache and pool metrics collected so far
+            System.out.println("\n" + MetricsRegistry.defaultRegistry().report());
 
-            // Shutdown hook to close all connections when the application ends
+
+            // Shutdown hook to flush queued writes and close all connections when the application ends
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    customerWriter.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
                 try {
                     dataSource.closeAllConnections();
                 } catch (SQLException e) {
@@ -0,0 +1,12 @@
+package org.example;
+
+import java.lang.annotation.*;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+// marks a Reference<Target> field as a link to another entity, stored as the target's id in `column`.
+// the target is loaded the first time Reference#get() is called, together with the references of
+// the other rows of the same query.
+public @interface ManyToOne {
+    String column();
+}
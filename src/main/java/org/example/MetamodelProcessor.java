@@ -0,0 +1,469 @@
+package org.example;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+// writes an <Entity>_ metamodel (see EntityMetamodel) next to every @Entity class at compile time:
+// the table and column names and the SQL as constants, and a plain constructor call plus getter/setter
+// (or field) accesses for every column. EntityMetadata uses it instead of reflection when it exists.
+// an entity the generated code cannot reach (a private field without accessors, no visible no-arg
+// constructor, an unsupported field type) gets a warning and no metamodel, and keeps using reflection.
+//
+// it only depends on the JDK, so the build compiles it on its own before the entities (see pom.xml).
+// annotations are looked up by name for the same reason.
+@SupportedAnnotationTypes(MetamodelProcessor.ENTITY)
+public class MetamodelProcessor extends AbstractProcessor {
+    static final String ENTITY = "org.example.Entity";
+    private static final String COLUMN = "org.example.Column";
+    private static final String ID = "org.example.Id";
+    private static final String MANY_TO_ONE = "org.example.ManyToOne";
+    private static final String ONE_TO_MANY = "org.example.OneToMany";
+    private static final String REFERENCE = "org.example.Reference";
+    // constants every metamodel has, a column constant with one of these names gets a suffix
+    private static final Set<String> RESERVED = Set.of("TABLE", "INSERT_SQL", "INSERT_GENERATED_ID_SQL",
+            "SELECT_COLUMNS_SQL", "SELECT_BY_ID_SQL", "UPDATE_SQL");
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        TypeElement entityAnnotation = processingEnv.getElementUtils().getTypeElement(ENTITY);
+        if (entityAnnotation == null)
+            return false;
+        for (Element element : round.getElementsAnnotatedWith(entityAnnotation)) {
+            if (element.getKind() != ElementKind.CLASS)
+                continue;
+            TypeElement entity = (TypeElement) element;
+            try {
+                write(model(entity));
+            } catch (UnsupportedEntityException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                        "no metamodel for " + entity.getSimpleName() + ", it is mapped by reflection at runtime: "
+                                + e.getMessage(), e.element);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "cannot write the metamodel of " + entity.getSimpleName() + ": " + e.getMessage(), entity);
+            }
+        }
+        return false;
+    }
+
+    // everything the generated class needs, checked against what the generated code can access
+    private EntityModel model(TypeElement entity) throws UnsupportedEntityException {
+        Set<Modifier> modifiers = entity.getModifiers();
+        if (modifiers.contains(Modifier.ABSTRACT) || modifiers.contains(Modifier.PRIVATE))
+            throw new UnsupportedEntityException("the class is abstract or private", entity);
+        if (entity.getNestingKind() != NestingKind.TOP_LEVEL
+                && (entity.getNestingKind() != NestingKind.MEMBER || !modifiers.contains(Modifier.STATIC)))
+            throw new UnsupportedEntityException("an inner or local class cannot be instantiated on its own", entity);
+        boolean constructor = ElementFilter.constructorsIn(entity.getEnclosedElements()).stream()
+                .anyMatch(c -> c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE));
+        if (!constructor)
+            throw new UnsupportedEntityException("it needs a non-private no-arg constructor", entity);
+
+        EntityModel model = new EntityModel();
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(entity);
+        model.packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(entity).toString();
+        // Class.forName(entity.getName() + "_") has to find it, so nested classes keep their '$'
+        model.className = binaryName.substring(model.packageName.isEmpty() ? 0 : model.packageName.length() + 1) + "_";
+        model.entityType = entity.getQualifiedName().toString();
+        model.entitySimpleName = entity.getSimpleName().toString();
+        model.isPublic = modifiers.contains(Modifier.PUBLIC);
+        model.tableName = annotationValue(entity, ENTITY, "tableName");
+
+        Set<String> constants = new HashSet<>(RESERVED);
+        for (VariableElement field : ElementFilter.fieldsIn(entity.getEnclosedElements())) {
+            if (hasAnnotation(field, COLUMN)) {
+                ColumnModel column = column(entity, field, annotationValue(field, COLUMN, "name"), false);
+                column.id = hasAnnotation(field, ID);
+                if (column.id && model.idColumn < 0)
+                    model.idColumn = model.columns.size();
+                column.constant = constant(field, constants);
+                model.columns.add(column);
+            } else if (hasAnnotation(field, MANY_TO_ONE)) {
+                String target = typeArgument(field, REFERENCE);
+                ColumnModel column = column(entity, field, annotationValue(field, MANY_TO_ONE, "column"), true);
+                column.constant = constant(field, constants);
+                model.associations.add(new AssociationModel(field.getSimpleName().toString(), true, target,
+                        model.columns.size(), null, column.getter, column.setter));
+                model.columns.add(column);
+            } else if (hasAnnotation(field, ONE_TO_MANY)) {
+                String target = typeArgument(field, "java.util.List");
+                String[] access = access(entity, field);
+                model.associations.add(new AssociationModel(field.getSimpleName().toString(), false, target, -1,
+                        annotationValue(field, ONE_TO_MANY, "mappedBy"), access[0], access[1]));
+            }
+        }
+        return model;
+    }
+
+    private ColumnModel column(TypeElement entity, VariableElement field, String name, boolean reference)
+            throws UnsupportedEntityException {
+        ColumnModel column = new ColumnModel();
+        column.name = name;
+        TypeMirror type = field.asType();
+        column.type = processingEnv.getTypeUtils().erasure(type).toString();
+        if (reference) {
+            typeArgument(field, REFERENCE);
+            column.kind = ColumnKind.REFERENCE;
+        } else if (type.getKind() == TypeKind.CHAR) {
+            throw new UnsupportedEntityException("char fields have no JDBC getter", field);
+        } else if (type.getKind().isPrimitive()) {
+            column.kind = ColumnKind.PRIMITIVE;
+        } else {
+            column.kind = column.type.equals("java.lang.String") ? ColumnKind.STRING : ColumnKind.OBJECT;
+        }
+        String[] access = access(entity, field);
+        column.getter = access[0];
+        column.setter = access[1];
+        return column;
+    }
+
+    // {getter expression, setter format with one %s}, both on a variable called `entity`. a
+    // non-private field is used directly, a private one through its bean getter and setter.
+    private String[] access(TypeElement entity, VariableElement field) throws UnsupportedEntityException {
+        String name = field.getSimpleName().toString();
+        Set<Modifier> modifiers = field.getModifiers();
+        if (modifiers.contains(Modifier.STATIC))
+            throw new UnsupportedEntityException("static fields cannot be mapped", field);
+        if (modifiers.contains(Modifier.FINAL))
+            throw new UnsupportedEntityException("final fields cannot be hydrated", field);
+        if (!modifiers.contains(Modifier.PRIVATE))
+            return new String[]{"entity." + name, "entity." + name + " = %s"};
+
+        String property = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        String getter = null;
+        String setter = null;
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(entity))) {
+            Set<Modifier> methodModifiers = method.getModifiers();
+            if (methodModifiers.contains(Modifier.PRIVATE) || methodModifiers.contains(Modifier.STATIC))
+                continue;
+            String methodName = method.getSimpleName().toString();
+            if (method.getParameters().isEmpty()
+                    && (methodName.equals("get" + property)
+                    || methodName.equals("is" + property) && field.asType().getKind() == TypeKind.BOOLEAN)
+                    && processingEnv.getTypeUtils().isSameType(method.getReturnType(), field.asType()))
+                getter = "entity." + methodName + "()";
+            else if (method.getParameters().size() == 1 && methodName.equals("set" + property)
+                    && processingEnv.getTypeUtils().isSameType(method.getParameters().get(0).asType(), field.asType()))
+                setter = "entity." + methodName + "(%s)";
+        }
+        if (getter == null || setter == null)
+            throw new UnsupportedEntityException("private field " + name + " needs a get" + property
+                    + "() and a set" + property + "(...) method", field);
+        return new String[]{getter, setter};
+    }
+
+    // the erased Target of Reference<Target> or List<Target>
+    private String typeArgument(VariableElement field, String expectedType) throws UnsupportedEntityException {
+        TypeMirror type = field.asType();
+        if (type.getKind() == TypeKind.DECLARED) {
+            DeclaredType declared = (DeclaredType) type;
+            Element element = declared.asElement();
+            if (element instanceof TypeElement
+                    && ((TypeElement) element).getQualifiedName().contentEquals(expectedType)
+                    && declared.getTypeArguments().size() == 1
+                    && declared.getTypeArguments().get(0).getKind() == TypeKind.DECLARED)
+                return processingEnv.getTypeUtils().erasure(declared.getTypeArguments().get(0)).toString();
+        }
+        throw new UnsupportedEntityException("association " + field.getSimpleName() + " must be declared as "
+                + expectedType.substring(expectedType.lastIndexOf('.') + 1) + "<Entity>", field);
+    }
+
+    // FIRST_NAME for firstName
+    private static String constant(VariableElement field, Set<String> taken) {
+        String constant = field.getSimpleName().toString()
+                .replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT);
+        while (!taken.add(constant))
+            constant += "_COLUMN";
+        return constant;
+    }
+
+    private static boolean hasAnnotation(Element element, String annotation) {
+        return mirror(element, annotation) != null;
+    }
+
+    private String annotationValue(Element element, String annotation, String member) {
+        AnnotationMirror mirror = mirror(element, annotation);
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(member))
+                return (String) entry.getValue().getValue();
+        }
+        return null;
+    }
+
+    private static AnnotationMirror mirror(Element element, String annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation))
+                return mirror;
+        }
+        return null;
+    }
+
+    private void write(EntityModel model) throws IOException {
+        String qualifiedName = model.packageName.isEmpty() ? model.className : model.packageName + "." + model.className;
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName);
+        try (Writer writer = file.openWriter()) {
+            writer.write(source(model));
+        }
+    }
+
+    private static String source(EntityModel model) {
+        List<ColumnModel> columns = model.columns;
+        ColumnModel id = model.idColumn >= 0 ? columns.get(model.idColumn) : null;
+        String entity = model.entityType;
+        StringBuilder out = new StringBuilder();
+        if (!model.packageName.isEmpty())
+            out.append("package ").append(model.packageName).append(";\n\n");
+        out.append("import java.sql.PreparedStatement;\n")
+                .append("import java.sql.ResultSet;\n")
+                .append("import java.sql.SQLException;\n\n")
+                .append("// generated by ").append(MetamodelProcessor.class.getName()).append(" from ")
+                .append(model.entitySimpleName).append(", do not edit\n")
+                .append("@javax.annotation.processing.Generated(\"").append(MetamodelProcessor.class.getName()).append("\")\n")
+                .append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n")
+                .append(model.isPublic ? "public " : "").append("final class ").append(model.className)
+                .append(" extends org.example.EntityMetamodel<").append(entity).append("> {\n");
+
+        // constants
+        constant(out, "TABLE", model.tableName);
+        for (ColumnModel column : columns)
+            constant(out, column.constant, column.name);
+        List<ColumnModel> nonId = columns.stream().filter(column -> !column.id).collect(Collectors.toList());
+        String selectColumns = "SELECT " + names(columns, ",") + " FROM " + model.tableName;
+        constant(out, "INSERT_SQL", "INSERT INTO " + model.tableName + " (" + names(columns, ",") + ") VALUES ("
+                + placeholders(columns.size()) + ")");
+        constant(out, "INSERT_GENERATED_ID_SQL", "INSERT INTO " + model.tableName + " (" + names(nonId, ",")
+                + ") VALUES (" + placeholders(nonId.size()) + ")");
+        constant(out, "SELECT_COLUMNS_SQL", selectColumns);
+        constant(out, "SELECT_BY_ID_SQL", id == null ? null : selectColumns + " WHERE " + id.name + " = ?");
+        constant(out, "UPDATE_SQL", id == null ? null : "UPDATE " + model.tableName + " SET "
+                + nonId.stream().map(column -> column.name + " = ?").collect(Collectors.joining(","))
+                + " WHERE " + id.name + " = ?");
+
+        // constructor
+        out.append("\n    public ").append(model.className).append("() {\n")
+                .append("        super(").append(entity).append(".class, TABLE,\n")
+                .append("                new String[]{")
+                .append(columns.stream().map(column -> column.constant).collect(Collectors.joining(", "))).append("},\n")
+                .append("                new Class<?>[]{")
+                .append(columns.stream().map(column -> (column.kind == ColumnKind.REFERENCE ? "int" : column.type) + ".class")
+                        .collect(Collectors.joining(", "))).append("},\n")
+                .append("                ").append(model.idColumn).append(");\n");
+        for (AssociationModel association : model.associations) {
+            if (association.manyToOne)
+                out.append("        manyToOne(\"").append(association.name).append("\", ").append(association.target)
+                        .append(".class, ").append(association.column).append(");\n");
+            else
+                out.append("        oneToMany(\"").append(association.name).append("\", ").append(association.target)
+                        .append(".class, ").append(literal(association.mappedBy)).append(");\n");
+        }
+        out.append("    }\n");
+
+        // instances
+        out.append("\n    @Override\n    protected ").append(entity).append(" newInstance() {\n")
+                .append("        return new ").append(entity).append("();\n    }\n");
+        out.append("\n    @Override\n    protected ").append(entity)
+                .append(" hydrate(ResultSet rs, int offset) throws SQLException {\n")
+                .append("        ").append(entity).append(" entity = new ").append(entity).append("();\n");
+        for (int i = 0; i < columns.size(); i++)
+            out.append("        ").append(columns.get(i).read("rs", "offset + " + (i + 1))).append(";\n");
+        out.append("        return entity;\n    }\n");
+
+        // per column
+        out.append("\n    @Override\n    protected Object get(").append(entity).append(" entity, int column) {\n");
+        switchOver(out, columns.size(), i -> "return " + columns.get(i).boxedGet() + ";", "noSuchColumn(column)", "column");
+        out.append("    }\n");
+        out.append("\n    @Override\n    protected void set(").append(entity).append(" entity, int column, Object value) {\n");
+        switchOver(out, columns.size(), i -> columns.get(i).boxedSet() + ";\n                break;", "noSuchColumn(column)", "column");
+        out.append("    }\n");
+        out.append("\n    @Override\n    protected void read(").append(entity)
+                .append(" entity, int column, ResultSet rs, int columnIndex) throws SQLException {\n");
+        switchOver(out, columns.size(), i -> columns.get(i).read("rs", "columnIndex") + ";\n                break;",
+                "noSuchColumn(column)", "column");
+        out.append("    }\n");
+        out.append("\n    @Override\n    protected void bind(").append(entity)
+                .append(" entity, int column, PreparedStatement statement, int parameterIndex) throws SQLException {\n");
+        switchOver(out, columns.size(), i -> columns.get(i).bind() + ";\n                break;", "noSuchColumn(column)", "column");
+        out.append("    }\n");
+
+        // per association
+        List<AssociationModel> associations = model.associations;
+        out.append("\n    @Override\n    protected Object getAssociation(").append(entity).append(" entity, int association) {\n");
+        switchOver(out, associations.size(), i -> "return " + associations.get(i).getter + ";",
+                "noSuchAssociation(association)", "association");
+        out.append("    }\n");
+        out.append("\n    @Override\n    protected void setAssociation(").append(entity)
+                .append(" entity, int association, Object value) {\n");
+        switchOver(out, associations.size(), i -> String.format(associations.get(i).setter,
+                        "(" + (associations.get(i).manyToOne ? "org.example.Reference" : "java.util.List") + ") value")
+                        + ";\n                break;",
+                "noSuchAssociation(association)", "association");
+        out.append("    }\n");
+
+        // SQL
+        for (String[] sql : new String[][]{{"insertSql", "INSERT_SQL"}, {"insertGeneratedIdSql", "INSERT_GENERATED_ID_SQL"},
+                {"selectColumnsSql", "SELECT_COLUMNS_SQL"}, {"selectByIdSql", "SELECT_BY_ID_SQL"}, {"updateSql", "UPDATE_SQL"}})
+            out.append("\n    @Override\n    protected String ").append(sql[0]).append("() {\n        return ")
+                    .append(sql[1]).append(";\n    }\n");
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private static void constant(StringBuilder out, String name, String value) {
+        out.append("    public static final String ").append(name).append(" = ").append(literal(value)).append(";\n");
+    }
+
+    private static void switchOver(StringBuilder out, int cases, java.util.function.IntFunction<String> body,
+                                   String error, String variable) {
+        out.append("        switch (").append(variable).append(") {\n");
+        for (int i = 0; i < cases; i++)
+            out.append("            case ").append(i).append(":\n                ").append(body.apply(i)).append("\n");
+        out.append("            default:\n                throw ").append(error).append(";\n        }\n");
+    }
+
+    private static String names(List<ColumnModel> columns, String separator) {
+        return columns.stream().map(column -> column.name).collect(Collectors.joining(separator));
+    }
+
+    private static String placeholders(int count) {
+        return String.join(",", Collections.nCopies(count, "?"));
+    }
+
+    private static String literal(String value) {
+        if (value == null)
+            return "null";
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private enum ColumnKind {PRIMITIVE, STRING, REFERENCE, OBJECT}
+
+    private static final class EntityModel {
+        String packageName;
+        String className;
+        String entityType;
+        String entitySimpleName;
+        boolean isPublic;
+        String tableName;
+        int idColumn = -1;
+        final List<ColumnModel> columns = new ArrayList<>();
+        final List<AssociationModel> associations = new ArrayList<>();
+    }
+
+    private static final class ColumnModel {
+        String name;
+        String constant;
+        String type; // erased Java type of the field
+        ColumnKind kind;
+        boolean id;
+        String getter;
+        String setter;
+
+        // the JDBC getter/setter suffix: Int, Long, ... for primitives, String for strings
+        private String jdbcType() {
+            return kind == ColumnKind.STRING ? "String" : Character.toUpperCase(type.charAt(0)) + type.substring(1);
+        }
+
+        String read(String rs, String columnIndex) {
+            switch (kind) {
+                case REFERENCE:
+                    return String.format(setter, "readReference(" + rs + ", " + columnIndex + ")");
+                case OBJECT:
+                    return String.format(setter, rs + ".getObject(" + columnIndex + ", " + type + ".class)");
+                default:
+                    return String.format(setter, rs + ".get" + jdbcType() + "(" + columnIndex + ")");
+            }
+        }
+
+        String bind() {
+            switch (kind) {
+                case REFERENCE:
+                    return "bindReference(statement, parameterIndex, " + getter + ")";
+                case OBJECT:
+                    return "statement.setObject(parameterIndex, " + getter + ")";
+                default:
+                    return "statement.set" + jdbcType() + "(parameterIndex, " + getter + ")";
+            }
+        }
+
+        String boxedGet() {
+            return kind == ColumnKind.REFERENCE ? "referenceId(" + getter + ")" : getter;
+        }
+
+        String boxedSet() {
+            switch (kind) {
+                case REFERENCE:
+                    return String.format(setter, "reference(value)");
+                case PRIMITIVE:
+                    if (type.equals("boolean"))
+                        return String.format(setter, "value != null && (Boolean) value");
+                    return String.format(setter, "value == null ? 0 : ((Number) value)." + type + "Value()");
+                default:
+                    return String.format(setter, "(" + type + ") value");
+            }
+        }
+    }
+
+    private static final class AssociationModel {
+        final String name;
+        final boolean manyToOne;
+        final String target;
+        final int column; // many-to-one only
+        final String mappedBy; // one-to-many only
+        final String getter;
+        final String setter;
+
+        AssociationModel(String name, boolean manyToOne, String target, int column, String mappedBy,
+                         String getter, String setter) {
+            this.name = name;
+            this.manyToOne = manyToOne;
+            this.target = target;
+            this.column = column;
+            this.mappedBy = mappedBy;
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    private static final class UnsupportedEntityException extends Exception {
+        final Element element;
+
+        UnsupportedEntityException(String message, Element element) {
+            super(message);
+            this.element = element;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.example;
+
+import java.util.function.LongSupplier;
+
+// where EntityManager and CustomDataSource report what they do. plug in an adapter for the
+// metrics library in use, or read SimpleMetricsRegistry directly. metric objects are looked up
+// once and kept, so recording a value costs no name lookup.
+public interface MetricsRegistry {
+    // a distribution of values, e.g. latencies in nanoseconds or rows per query
+    Histogram histogram(String name);
+
+    Counter counter(String name);
+
+    // a value read whenever the registry is reported, e.g. connections in use
+    void gauge(String name, LongSupplier value);
+
+    interface Histogram {
+        void record(long value);
+    }
+
+    interface Counter {
+        void increment();
+
+        void add(long amount);
+    }
+
+    // records nothing, for when even the default registry is too much
+    MetricsRegistry NOOP = new MetricsRegistry() {
+        private final Histogram histogram = value -> {
+        };
+        private final Counter counter = new Counter() {
+            @Override
+            public void increment() {
+            }
+
+            @Override
+            public void add(long amount) {
+            }
+        };
+
+        @Override
+        public Histogram histogram(String name) {
+            return histogram;
+        }
+
+        @Override
+        public Counter counter(String name) {
+            return counter;
+        }
+
+        @Override
+        public void gauge(String name, LongSupplier value) {
+        }
+    };
+
+    // the registry used unless another one is set, shared by every EntityManager and data source
+    static SimpleMetricsRegistry defaultRegistry() {
+        return SimpleMetricsRegistry.DEFAULT;
+    }
+}
@@ -0,0 +1,465 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+// a second cache tier that keeps entity rows outside the java heap, so a working set far larger than
+// the entity cache costs no GC time. give it to an EntityManager behind its entity cache:
+//
+//   customerEntityManager.setSecondLevelCache(new OffHeapCache<>(Customer.class, 1L << 30));
+//
+// a row is stored in the binary form of RowCodec (column by column in @Column order, only int and
+// String columns). a hit builds a new entity from those bytes. only 12-17 bytes per entry stay on the
+// heap, for the id -> row index.
+//
+// rows are appended to a ring of segments. when the current segment is full, the oldest one is
+// reused and its rows are evicted (first in, first out). an update appends the row again, and the
+// earlier copy is only reclaimed with its segment.
+//
+// the segments are direct ByteBuffers, or regions of a memory-mapped file. a mapped cache reopened
+// with the same file, capacity and entity columns still has its rows after a restart (a warm cache).
+// those rows may have changed in the database while the process was down, so only reopen the file
+// if every write goes through this process, or clear() it otherwise. the file is written back by the
+// OS, close() forces it to disk. one process at a time can use a file.
+public class OffHeapCache<T> implements Cache<Integer, T>, AutoCloseable {
+    private static final int MAGIC = 0x4f484331;
+    private static final int FILE_HEADER = 16; // magic, layout hash, segment count, segment size
+    private static final int SEGMENT_HEADER = 16; // sequence number (0 = unused), write position
+    private static final int RECORD_HEADER = 8; // id, row length (TOMBSTONE for an invalidation)
+    private static final int TOMBSTONE = -1;
+    private static final int SEGMENTS = 16;
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private final RowCodec<T> codec;
+    private final int segmentSize;
+    private final ByteBuffer[] segments;
+    private final FileChannel file; // null for direct buffers
+    private final FileLock fileLock;
+    private final Index index = new Index();
+    // writes take it alone. reads copy the row under an optimistic read and only retry under a read
+    // lock if a write (which may have reused the segment) ran meanwhile.
+    private final StampedLock lock = new StampedLock();
+    private int current; // segment being appended to
+    private long sequence; // of the current segment, higher = more recent
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // rows in direct (off-heap) memory, about capacityBytes of it, lost when the process ends
+    public OffHeapCache(Class<T> entityClass, long capacityBytes) {
+        this.codec = new RowCodec<>(EntityMetadata.of(entityClass));
+        this.segmentSize = segmentSize(capacityBytes);
+        this.segments = new ByteBuffer[segmentCount(capacityBytes, segmentSize)];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = ByteBuffer.allocateDirect(segmentSize);
+        this.file = null;
+        this.fileLock = null;
+        reset();
+    }
+
+    // rows in `path`, memory-mapped, which keeps them from a previous run when it was written with the
+    // same capacity and entity columns (otherwise it starts empty)
+    public OffHeapCache(Class<T> entityClass, long capacityBytes, Path path) throws IOException {
+        this.codec = new RowCodec<>(EntityMetadata.of(entityClass));
+        this.segmentSize = segmentSize(capacityBytes);
+        this.segments = new ByteBuffer[segmentCount(capacityBytes, segmentSize)];
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.fileLock = file.tryLock();
+            if (fileLock == null)
+                throw new IOException(path + " is used by another process");
+            long fileSize = FILE_HEADER + (long) segments.length * segmentSize;
+            MappedByteBuffer header = file.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER);
+            boolean reuse = file.size() == fileSize && header.getInt(0) == MAGIC
+                    && header.getInt(4) == codec.layoutHash() && header.getInt(8) == segments.length
+                    && header.getInt(12) == segmentSize;
+            if (!reuse) {
+                header.putInt(0, 0); // not valid until the segments are reset
+                file.truncate(FILE_HEADER);
+            }
+            for (int i = 0; i < segments.length; i++)
+                segments[i] = file.map(FileChannel.MapMode.READ_WRITE, FILE_HEADER + (long) i * segmentSize, segmentSize);
+            if (reuse) {
+                recover();
+                System.out.println("off-heap cache of " + entityClass.getSimpleName() + " reopened with " +
+                        index.size() + " rows from " + path);
+            } else {
+                reset();
+                header.putInt(4, codec.layoutHash());
+                header.putInt(8, segments.length);
+                header.putInt(12, segmentSize);
+                header.putInt(0, MAGIC);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public T get(Integer key) {
+        int id = key;
+        long stamp = lock.tryOptimisticRead();
+        byte[] row = copy(id);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                row = copy(id);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (row == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return codec.decode(ByteBuffer.wrap(row));
+    }
+
+    @Override
+    public void put(Integer key, T value) {
+        Objects.requireNonNull(value, "value");
+        int id = key;
+        byte[] row = codec.encode(value); // serialized before taking the lock
+        long stamp = lock.writeLock();
+        try {
+            if (RECORD_HEADER + row.length > segmentSize - SEGMENT_HEADER) {
+                remove(id); // too large to cache, but an older copy must not be served either
+                return;
+            }
+            index.put(id, append(id, row));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void invalidate(Integer key) {
+        int id = key;
+        long stamp = lock.writeLock();
+        try {
+            remove(id);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            reset();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // number of cached rows
+    public long size() {
+        long stamp = lock.readLock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    // rows dropped because their segment was reused
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // report hits, misses, evictions and size as gauges named <name>.hits, <name>.misses, ...
+    public void registerMetrics(MetricsRegistry registry, String name) {
+        registry.gauge(name + ".hits", hits::sum);
+        registry.gauge(name + ".misses", misses::sum);
+        registry.gauge(name + ".evictions", evictions::sum);
+        registry.gauge(name + ".size", this::size);
+    }
+
+    // write a mapped cache back to its file and release it. a direct cache has nothing to release,
+    // its memory is freed with the buffers.
+    @Override
+    public void close() throws IOException {
+        if (file == null)
+            return;
+        long stamp = lock.writeLock();
+        try {
+            for (ByteBuffer segment : segments)
+                ((MappedByteBuffer) segment).force();
+            fileLock.release();
+            file.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static int segmentSize(long capacityBytes) {
+        if (capacityBytes < 2 * 4096)
+            throw new IllegalArgumentException("capacity must be at least 8 KB");
+        return (int) Math.min(MAX_SEGMENT_SIZE, Math.max(4096, capacityBytes / SEGMENTS));
+    }
+
+    private static int segmentCount(long capacityBytes, int segmentSize) {
+        // at least two, reusing the only segment would evict everything at once
+        return (int) Math.max(2, capacityBytes / segmentSize);
+    }
+
+    // the row of `id`, copied out of its segment, or null. may run without the lock (an optimistic
+    // read), so it checks every length it reads instead of trusting it
+    private byte[] copy(int id) {
+        long address = index.get(id);
+        if (address < 0)
+            return null;
+        int s = segment(address);
+        int position = position(address);
+        if (s >= segments.length || position < SEGMENT_HEADER || position > segmentSize - RECORD_HEADER)
+            return null;
+        ByteBuffer segment = segments[s];
+        int length = segment.getInt(position + 4);
+        if (length < 0 || length > segmentSize - position - RECORD_HEADER)
+            return null;
+        byte[] row = new byte[length];
+        segment.get(position + RECORD_HEADER, row);
+        return row;
+    }
+
+    // append a record (row == null for a tombstone) and return its address; the caller holds the write lock
+    private long append(int id, byte[] row) {
+        int length = RECORD_HEADER + (row == null ? 0 : row.length);
+        ByteBuffer segment = segments[current];
+        int position = segment.getInt(8);
+        if (position + length > segmentSize) {
+            current = (current + 1) % segments.length;
+            evict(current);
+            segment = segments[current];
+            segment.putLong(0, ++sequence);
+            position = SEGMENT_HEADER;
+        }
+        segment.putInt(position, id);
+        segment.putInt(position + 4, row == null ? TOMBSTONE : row.length);
+        if (row != null)
+            segment.put(position + RECORD_HEADER, row);
+        segment.putInt(8, position + length); // last, a record is only replayed once it is complete
+        return address(current, position);
+    }
+
+    private void remove(int id) {
+        // a mapped cache records the invalidation, or the old row would come back after a restart
+        if (index.remove(id) && file != null)
+            append(id, null);
+    }
+
+    // drop the rows still indexed at segment `s`, it is about to be overwritten
+    private void evict(int s) {
+        ByteBuffer segment = segments[s];
+        int end = segment.getInt(8);
+        int position = SEGMENT_HEADER;
+        while (position < end) {
+            int id = segment.getInt(position);
+            int length = segment.getInt(position + 4);
+            if (length != TOMBSTONE && index.get(id) == address(s, position)) {
+                index.remove(id);
+                evictions.increment();
+            }
+            position += RECORD_HEADER + Math.max(length, 0);
+        }
+        segment.putInt(8, SEGMENT_HEADER);
+    }
+
+    private void reset() {
+        index.clear();
+        for (ByteBuffer segment : segments) {
+            segment.putLong(0, 0);
+            segment.putInt(8, SEGMENT_HEADER);
+        }
+        current = 0;
+        sequence = 1;
+        segments[0].putLong(0, sequence);
+    }
+
+    // rebuild the index of a reopened file by replaying its segments from the oldest to the newest
+    private void recover() {
+        List<Integer> used = new ArrayList<>();
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].getLong(0) > 0)
+                used.add(i);
+        }
+        if (used.isEmpty()) {
+            reset();
+            return;
+        }
+        used.sort(Comparator.comparingLong(i -> segments[i].getLong(0)));
+        for (int s : used)
+            replay(s);
+        current = used.get(used.size() - 1);
+        sequence = segments[current].getLong(0);
+    }
+
+    private void replay(int s) {
+        ByteBuffer segment = segments[s];
+        int end = Math.min(Math.max(segment.getInt(8), SEGMENT_HEADER), segmentSize);
+        int position = SEGMENT_HEADER;
+        while (position + RECORD_HEADER <= end) {
+            int id = segment.getInt(position);
+            int length = segment.getInt(position + 4);
+            if (length == TOMBSTONE) {
+                index.remove(id);
+                position += RECORD_HEADER;
+                continue;
+            }
+            if (length < 0 || position + RECORD_HEADER + length > end)
+                break; // damaged, the rest of the segment is dropped
+            index.put(id, address(s, position));
+            position += RECORD_HEADER + length;
+        }
+        segment.putInt(8, position);
+    }
+
+    private static long address(int segment, int position) {
+        return (long) segment << 32 | position;
+    }
+
+    private static int segment(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int position(long address) {
+        return (int) address;
+    }
+
+    // id -> record address, open addressing on primitive arrays like IntKeyCache. written under the
+    // write lock; get may also run during an optimistic read.
+    private static final class Index {
+        private static final int INITIAL_CAPACITY = 1024;
+        private static final float LOAD_FACTOR = 0.7f;
+
+        private Table table; // replaced whole on resize, so a reader never mixes two tables
+        private int size;
+
+        Index() {
+            clear();
+        }
+
+        int size() {
+            return size;
+        }
+
+        // the address of `key`, -1 if it has none. reads the table once and never trusts a probe to
+        // terminate on its own
+        long get(int key) {
+            Table table = this.table;
+            int mask = table.keys.length - 1;
+            for (int i = hash(key) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long address = table.addresses[i];
+                if (address == 0)
+                    return -1;
+                if (table.keys[i] == key)
+                    return address - 1;
+            }
+            return -1;
+        }
+
+        void put(int key, long address) {
+            int[] keys = table.keys;
+            long[] addresses = table.addresses;
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (addresses[i] != 0) {
+                if (keys[i] == key) {
+                    addresses[i] = address + 1;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            addresses[i] = address + 1;
+            if (++size > keys.length * LOAD_FACTOR)
+                resize();
+        }
+
+        // backward shift deletion, see IntKeyCache
+        boolean remove(int key) {
+            int[] keys = table.keys;
+            long[] addresses = table.addresses;
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != key || addresses[i] == 0) {
+                if (addresses[i] == 0)
+                    return false;
+                i = (i + 1) & mask;
+            }
+            for (int j = (i + 1) & mask; addresses[j] != 0; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                boolean homeBetween = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (!homeBetween) {
+                    keys[i] = keys[j];
+                    addresses[i] = addresses[j];
+                    i = j;
+                }
+            }
+            addresses[i] = 0;
+            size--;
+            return true;
+        }
+
+        void clear() {
+            table = new Table(INITIAL_CAPACITY);
+            size = 0;
+        }
+
+        private void resize() {
+            int[] oldKeys = table.keys;
+            long[] oldAddresses = table.addresses;
+            Table table = new Table(oldKeys.length * 2);
+            int[] keys = table.keys;
+            long[] addresses = table.addresses;
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldAddresses[j] == 0)
+                    continue;
+                int i = hash(oldKeys[j]) & mask;
+                while (addresses[i] != 0)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                addresses[i] = oldAddresses[j];
+            }
+            this.table = table;
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private static final class Table {
+        final int[] keys;
+        final long[] addresses; // address + 1, 0 marks a free slot
+
+        Table(int capacity) {
+            this.keys = new int[capacity];
+            this.addresses = new long[capacity];
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.example;
+
+import java.lang.annotation.*;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+// marks a List<Child> field as the children whose @ManyToOne field `mappedBy` points at this entity.
+// the list is read-only and is loaded the first time it is used, together with the lists of the
+// other rows of the same query.
+public @interface OneToMany {
+    String mappedBy();
+}
@@ -0,0 +1,27 @@
+package org.example;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// JFR event for a getConnection() call that waited longer than db.pool.longWaitMs for a connection
+@Name("org.example.PoolWait")
+@Label("Connection Pool Wait")
+@Category({"ORM", "Connection Pool"})
+@Description("A getConnection() call that waited for a connection to be returned")
+final class PoolWaitEvent extends jdk.jfr.Event {
+    @Label("Pool")
+    String pool;
+
+    @Label("Waited")
+    @Timespan(Timespan.NANOSECONDS)
+    long waited;
+
+    @Label("Threads Awaiting")
+    int threadsAwaiting;
+
+    @Label("Timed Out")
+    boolean timedOut;
+}
@@ -0,0 +1,148 @@
+package org.example;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a physical connection owned by CustomDataSource together with its pool bookkeeping.
+// borrowers never see the physical connection, they get a proxy whose close() hands it back.
+final class PooledConnection {
+    static final int IDLE = 0;
+    static final int IN_USE = 1;
+    static final int RESERVED = 2; // taken out of the idle deque by the pool itself, e.g. for validation
+    static final int REMOVED = 3;
+
+    private final CustomDataSource pool;
+    private final Connection physical;
+    private final StatementCache statementCache; // null when statement caching is off
+    private final long createdAt = System.nanoTime();
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+    private volatile long lastAccessed = createdAt;
+    private volatile long borrowedAt;
+    private volatile Throwable borrowTrace;
+    private volatile boolean leakReported;
+
+    PooledConnection(CustomDataSource pool, Connection physical, StatementCache statementCache) {
+        this.pool = pool;
+        this.physical = physical;
+        this.statementCache = statementCache;
+    }
+
+    Connection physical() {
+        return physical;
+    }
+
+    boolean compareAndSetState(int expected, int newState) {
+        return state.compareAndSet(expected, newState);
+    }
+
+    void setState(int newState) {
+        state.set(newState);
+    }
+
+    int state() {
+        return state.get();
+    }
+
+    long createdAt() {
+        return createdAt;
+    }
+
+    long lastAccessed() {
+        return lastAccessed;
+    }
+
+    long borrowedAt() {
+        return borrowedAt;
+    }
+
+    Throwable borrowTrace() {
+        return borrowTrace;
+    }
+
+    boolean isLeakReported() {
+        return leakReported;
+    }
+
+    void markLeakReported() {
+        leakReported = true;
+    }
+
+    // hand the connection to a borrower. the stack trace is only captured with leak detection on,
+    // since filling it in costs far more than the rest of the borrow.
+    Connection borrow(boolean captureTrace) {
+        borrowedAt = System.nanoTime();
+        borrowTrace = captureTrace ? new Throwable("connection borrowed here") : null;
+        leakReported = false;
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new Handle());
+    }
+
+    // called by the pool once the borrower is done with the connection
+    void returned() {
+        lastAccessed = System.nanoTime();
+        borrowTrace = null;
+    }
+
+    void closePhysical() {
+        if (statementCache != null)
+            statementCache.close();
+        try {
+            physical.close();
+        } catch (SQLException ignored) {
+            // the connection is being thrown away anyway
+        }
+    }
+
+    // the Connection a borrower holds. it is only valid until close(), after which the
+    // physical connection may already belong to another borrower.
+    private final class Handle implements InvocationHandler {
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (closed.compareAndSet(false, true))
+                        pool.release(PooledConnection.this);
+                    return null;
+                case "isClosed":
+                    return closed.get() || physical.isClosed();
+                case "prepareStatement":
+                    if (statementCache != null && !closed.get()) {
+                        PreparedStatement statement = statementCache.prepare((Connection) proxy, args);
+                        if (statement != null)
+                            return statement;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "pooled " + physical;
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy))
+                        return proxy;
+                    break;
+                case "isWrapperFor":
+                    if (((Class<?>) args[0]).isInstance(proxy))
+                        return true;
+                    break;
+            }
+            if (closed.get())
+                throw new SQLException("Connection is closed");
+            try {
+                return method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
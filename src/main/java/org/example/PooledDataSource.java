@@ -0,0 +1,35 @@
+package org.example;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+// a DataSource backed by one or more connection pools, what EntityManager runs on.
+// getConnection() is for writes and transactions, getReadConnection() for reads that may be
+// served by a replica.
+public interface PooledDataSource extends DataSource {
+    // a connection for a read outside a transaction. a single pool simply hands out one of its own.
+    default Connection getReadConnection() throws SQLException {
+        return getConnection();
+    }
+
+    // Hand a connection back to its pool, same as closing it
+    default void returnConnection(Connection connection) throws SQLException {
+        connection.close();
+    }
+
+    // connections that can be borrowed at once, over every pool
+    int getMaxPoolSize();
+
+    int getActiveConnections();
+
+    int getIdleConnections();
+
+    int getTotalConnections();
+
+    int getThreadsAwaiting();
+
+    void setMetricsRegistry(MetricsRegistry registry);
+
+    void closeAllConnections() throws SQLException;
+}
@@ -0,0 +1,9 @@
+package org.example;
+
+// told how far a BulkTransfer got, after every buffer written or batch committed. called from the
+// transfer's worker threads, so it must be thread-safe.
+@FunctionalInterface
+public interface ProgressListener {
+    // rows written or committed so far, and bytes of the file written or read so far
+    void progress(long rows, long bytes);
+}
@@ -0,0 +1,344 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Stream;
+
+// a SELECT over one entity class, built from its @Column metadata:
+//
+//   em.query(Customer.class).where("lastname", "=", "Smith").orderBy("firstname").limit(50).getResultList()
+//
+// column names are checked against the entity and every value is bound as a parameter, so a given
+// query shape always produces the same SQL and its prepared statement can be reused.
+// deep pages use keyset pagination through after(...) instead of OFFSET: the database seeks straight
+// to the last row of the previous page instead of reading and discarding every row before it.
+// fetch(...) loads associations known to be needed up front along with the result.
+public class Query<T> {
+    private static final Set<String> OPERATORS = Set.of("=", "<>", "!=", "<", "<=", ">", ">=", "LIKE", "NOT LIKE");
+
+    private final EntityManager<T> entityManager;
+    private final EntityMetadata<T> metadata;
+    private final List<Condition> conditions = new ArrayList<>();
+    private final List<Object> parameters = new ArrayList<>();
+    private final List<Order> orders = new ArrayList<>();
+    private final List<AssociationMetadata> joins = new ArrayList<>(); // fetched @ManyToOne
+    private final List<AssociationMetadata> fetchedCollections = new ArrayList<>(); // fetched @OneToMany
+    private List<ColumnMetadata> projection; // null = every column
+    private int limit; // 0 = no limit
+    private Integer afterId;
+    private T afterEntity;
+
+    Query(EntityManager<T> entityManager, EntityMetadata<T> metadata) {
+        this.entityManager = entityManager;
+        this.metadata = metadata;
+    }
+
+    // add a condition, conditions are combined with AND. a null value with = or <> becomes IS (NOT) NULL.
+    public Query<T> where(String column, String operator, Object value) {
+        ColumnMetadata name = metadata.column(column);
+        String op = operator.trim().toUpperCase(Locale.ROOT);
+        if (!OPERATORS.contains(op))
+            throw new IllegalArgumentException("unsupported operator: " + operator);
+        if (value == null) {
+            if (op.equals("="))
+                conditions.add(new Condition(name, " IS NULL"));
+            else if (op.equals("<>") || op.equals("!="))
+                conditions.add(new Condition(name, " IS NOT NULL"));
+            else
+                throw new IllegalArgumentException("null can only be compared with = or <>");
+            return this;
+        }
+        conditions.add(new Condition(name, " " + op + " ?"));
+        parameters.add(value);
+        return this;
+    }
+
+    public Query<T> orderBy(String column) {
+        return orderBy(column, true);
+    }
+
+    public Query<T> orderByDescending(String column) {
+        return orderBy(column, false);
+    }
+
+    private Query<T> orderBy(String column, boolean ascending) {
+        orders.add(new Order(metadata.column(column), ascending));
+        return this;
+    }
+
+    public Query<T> limit(int limit) {
+        if (limit < 1)
+            throw new IllegalArgumentException("limit must be positive");
+        this.limit = limit;
+        return this;
+    }
+
+    // select only these columns, the other fields of the returned entities keep their default values.
+    // the id column and the orderBy columns are always selected as well, so a projected row can still
+    // be passed to after(...). partially loaded entities are never put in the cache.
+    public Query<T> select(String... columns) {
+        Set<ColumnMetadata> selected = new LinkedHashSet<>();
+        for (String column : columns)
+            selected.add(metadata.column(column));
+        this.projection = new ArrayList<>(selected);
+        return this;
+    }
+
+    // keyset pagination ordered by the id: return the rows after the one with this id.
+    // the query must not be ordered by any other column, use after(entity) for that.
+    public Query<T> after(int lastId) {
+        this.afterId = lastId;
+        this.afterEntity = null;
+        return this;
+    }
+
+    // keyset pagination: return the rows that come after `lastEntity` (the last row of the previous
+    // page) in the orderBy order. the id column is added as the final sort key to break ties.
+    public Query<T> after(T lastEntity) {
+        this.afterEntity = lastEntity;
+        this.afterId = null;
+        return this;
+    }
+
+    // load an association together with the result: a @ManyToOne is read in the same SELECT through a
+    // LEFT JOIN, a @OneToMany with one extra IN query for every row of the result (joining it would
+    // repeat each row once per child and break limit). a streamed result batch-fetches collections instead.
+    public Query<T> fetch(String association) {
+        AssociationMetadata fetched = metadata.association(association);
+        List<AssociationMetadata> target = fetched.isManyToOne() ? joins : fetchedCollections;
+        if (!target.contains(fetched))
+            target.add(fetched);
+        return this;
+    }
+
+    public List<T> getResultList() throws Exception {
+        return entityManager.getResultList(this);
+    }
+
+    // stream the result through a cursor, see EntityManager#stream
+    public Stream<T> getResultStream() throws Exception {
+        return entityManager.getResultStream(this);
+    }
+
+    // the first row of the result, or null
+    public T getFirstResult() throws Exception {
+        int previousLimit = limit;
+        limit = 1;
+        try {
+            List<T> result = getResultList();
+            return result.isEmpty() ? null : result.get(0);
+        } finally {
+            limit = previousLimit;
+        }
+    }
+
+    boolean isProjection() {
+        return projection != null;
+    }
+
+    EntityMetadata<T> metadata() {
+        return metadata;
+    }
+
+    // whether fetch(...) asked for associations to be loaded with the result
+    boolean isFetching() {
+        return !joins.isEmpty() || !fetchedCollections.isEmpty();
+    }
+
+    List<AssociationMetadata> fetchedCollections() {
+        return fetchedCollections;
+    }
+
+    String sql() {
+        List<Order> sortKeys = sortKeys();
+        StringBuilder sql = new StringBuilder();
+        if (projection == null && joins.isEmpty()) {
+            sql.append(metadata.selectColumnsSql());
+        } else {
+            sql.append("SELECT ");
+            appendNames(sql, rootColumns());
+            // joined tables are aliased j1, j2, ... so an entity can even join its own table
+            for (int i = 0; i < joins.size(); i++) {
+                for (ColumnMetadata column : joins.get(i).target().columns())
+                    sql.append(",j").append(i + 1).append('.').append(column.name());
+            }
+            sql.append(" FROM ").append(metadata.tableName());
+            for (int i = 0; i < joins.size(); i++) {
+                AssociationMetadata join = joins.get(i);
+                EntityMetadata<?> target = join.target();
+                sql.append(" LEFT JOIN ").append(target.tableName()).append(" j").append(i + 1)
+                        .append(" ON ").append(name(join.column())).append(" = j").append(i + 1)
+                        .append('.').append(target.idColumn().name());
+            }
+        }
+
+        List<String> where = new ArrayList<>();
+        for (Condition condition : conditions)
+            where.add(name(condition.column) + condition.predicate);
+        if (afterId != null || afterEntity != null)
+            where.add(seekCondition(sortKeys));
+        if (!where.isEmpty())
+            sql.append(" WHERE ").append(String.join(" AND ", where));
+
+        if (!sortKeys.isEmpty()) {
+            sql.append(" ORDER BY ");
+            for (int i = 0; i < sortKeys.size(); i++) {
+                Order order = sortKeys.get(i);
+                sql.append(i == 0 ? "" : ", ").append(name(order.column)).append(order.ascending ? "" : " DESC");
+            }
+        }
+        if (limit > 0)
+            sql.append(" LIMIT ?");
+        return sql.toString();
+    }
+
+    // the values of the ? placeholders of sql(), in order
+    Object[] parameters() {
+        List<Object> values = new ArrayList<>(parameters);
+        if (afterId != null) {
+            values.add(afterId);
+        } else if (afterEntity != null) {
+            // (k1 > ?) OR (k1 = ? AND k2 > ?) OR ... binds k1 once per disjunct it appears in
+            List<Order> sortKeys = sortKeys();
+            for (int i = 0; i < sortKeys.size(); i++) {
+                for (int j = 0; j <= i; j++)
+                    values.add(sortKeys.get(j).column.get(afterEntity));
+            }
+        }
+        if (limit > 0)
+            values.add(limit);
+        return values.toArray();
+    }
+
+    // builds entities from the rows selected with sql()
+    RowMapper<T> rowMapper() {
+        if (projection == null && joins.isEmpty())
+            return metadata::hydrate;
+        List<ColumnMetadata> columns = rootColumns();
+        RowMapper<T> root = projection == null ? metadata::hydrate : rs -> {
+            T entity = metadata.newInstance();
+            for (int i = 0; i < columns.size(); i++)
+                columns.get(i).read(rs, i + 1, entity);
+            return entity;
+        };
+        if (joins.isEmpty())
+            return root;
+
+        // the joined entities follow the root columns, each gets its own lazy associations
+        List<RowMapper<Object>> joined = new ArrayList<>();
+        for (AssociationMetadata join : joins)
+            joined.add(joinedMapper(join));
+        return rs -> {
+            T entity = root.map(rs);
+            for (int i = 0; i < joins.size(); i++) {
+                @SuppressWarnings("unchecked")
+                Reference<Object> reference = (Reference<Object>) joins.get(i).get(entity);
+                Object target = joined.get(i).map(rs);
+                if (reference != null)
+                    reference.resolve(target);
+            }
+            return entity;
+        };
+    }
+
+    // maps the columns of one joined table, null when the LEFT JOIN found no row
+    private RowMapper<Object> joinedMapper(AssociationMetadata join) {
+        int offset = rootColumns().size();
+        for (AssociationMetadata previous : joins) {
+            if (previous == join)
+                break;
+            offset += previous.target().columns().size();
+        }
+        @SuppressWarnings("unchecked")
+        EntityMetadata<Object> target = (EntityMetadata<Object>) join.target();
+        AssociationLoader<Object> loader = entityManager.associationLoader(target, false);
+        int targetOffset = offset;
+        int idIndex = offset + target.idColumn().index() + 1;
+        return rs -> {
+            rs.getObject(idIndex);
+            if (rs.wasNull())
+                return null;
+            Object entity = target.hydrate(rs, targetOffset);
+            return loader == null ? entity : loader.attach(entity);
+        };
+    }
+
+    // the columns of the queried table in the select list
+    private List<ColumnMetadata> rootColumns() {
+        return projection == null ? metadata.columns() : selectedColumns();
+    }
+
+    // the projected columns plus the id and sort columns, in entity column order
+    private List<ColumnMetadata> selectedColumns() {
+        Set<ColumnMetadata> columns = new LinkedHashSet<>(projection);
+        if (metadata.hasId())
+            columns.add(metadata.idColumn());
+        for (Order order : orders)
+            columns.add(order.column);
+        List<ColumnMetadata> sorted = new ArrayList<>(columns);
+        sorted.sort(Comparator.comparingInt(ColumnMetadata::index));
+        return sorted;
+    }
+
+    // the ORDER BY columns. they end with the id so the order is total and every page (the first one
+    // included) lines up with the keyset condition of the next one.
+    private List<Order> sortKeys() {
+        boolean seek = afterId != null || afterEntity != null;
+        if (!seek && (orders.isEmpty() || !metadata.hasId()))
+            return orders;
+        ColumnMetadata idColumn = metadata.idColumn();
+        List<Order> sortKeys = new ArrayList<>(orders);
+        if (sortKeys.stream().noneMatch(order -> order.column == idColumn))
+            sortKeys.add(new Order(idColumn, true));
+        if (afterId != null && (sortKeys.size() > 1 || sortKeys.get(0).column != idColumn))
+            throw new IllegalStateException("after(id) needs the query to be ordered by the id column only, use after(entity)");
+        return sortKeys;
+    }
+
+    private String seekCondition(List<Order> sortKeys) {
+        List<String> disjuncts = new ArrayList<>();
+        for (int i = 0; i < sortKeys.size(); i++) {
+            List<String> terms = new ArrayList<>();
+            for (int j = 0; j < i; j++)
+                terms.add(name(sortKeys.get(j).column) + " = ?");
+            Order order = sortKeys.get(i);
+            terms.add(name(order.column) + (order.ascending ? " > ?" : " < ?"));
+            disjuncts.add(String.join(" AND ", terms));
+        }
+        return disjuncts.size() == 1 ? disjuncts.get(0) : "((" + String.join(") OR (", disjuncts) + "))";
+    }
+
+    private void appendNames(StringBuilder sql, List<ColumnMetadata> columns) {
+        for (int i = 0; i < columns.size(); i++)
+            sql.append(i == 0 ? "" : ",").append(name(columns.get(i)));
+    }
+
+    // a column of the queried table, qualified with the table name once other tables are joined
+    private String name(ColumnMetadata column) {
+        return joins.isEmpty() ? column.name() : metadata.tableName() + "." + column.name();
+    }
+
+    private static final class Condition {
+        final ColumnMetadata column;
+        final String predicate; // e.g. " = ?" or " IS NULL"
+
+        Condition(ColumnMetadata column, String predicate) {
+            this.column = column;
+            this.predicate = predicate;
+        }
+    }
+
+    private static final class Order {
+        final ColumnMetadata column;
+        final boolean ascending;
+
+        Order(ColumnMetadata column, boolean ascending) {
+            this.column = column;
+            this.ascending = ascending;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.example;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// opt-in cache of query results, keyed by the SQL text and its parameters. a result is stored as the
+// list of ids it returned, the entities themselves are resolved through the entity cache (and the few
+// missing ones selected by id). share one QueryCache between the EntityManagers of a database:
+//
+//   QueryCache queryCache = new QueryCache(100_000, Duration.ofMinutes(5));
+//   customerEntityManager.setQueryCache(queryCache);
+//
+// every table has a version that is bumped when an insert, update or DDL through one of those
+// EntityManagers touched it (after the statement, or after the commit inside a transaction). a result
+// remembers the version its table had before the query ran and is ignored once the version moved on,
+// so a result read concurrently with a write is not served after the write's version bump. this only
+// holds for results read on the primary, which is why EntityManager never runs a cacheable query on
+// a replica. writes that bypass the EntityManagers are only picked up when the result expires.
+public class QueryCache {
+    private final BoundedCache<Key, Result> results;
+    private final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // at most maximumIds ids over all cached results (a result weighs as many ids as it holds, and at
+    // least one), each kept for timeToLive at most
+    public QueryCache(long maximumIds, Duration timeToLive) {
+        this.results = new BoundedCache<>(maximumIds, (key, result) -> Math.max(1, result.ids.length),
+                Objects.requireNonNull(timeToLive, "timeToLive"), null);
+    }
+
+    // the current version of `table`, read before running a query whose result will be put
+    long version(String table) {
+        AtomicLong version = versions.get(normalize(table));
+        return version == null ? 0 : version.get();
+    }
+
+    // the ids of a cached result, or null when there is none or its table changed since
+    int[] get(String table, String sql, Object[] parameters) {
+        Key key = new Key(sql, parameters);
+        Result result = results.get(key);
+        if (result != null && result.version != version(table)) {
+            results.invalidate(key);
+            result = null;
+        }
+        (result == null ? misses : hits).increment();
+        return result == null ? null : result.ids;
+    }
+
+    // cache the ids of a result read while `table` had `version`
+    void put(String table, long version, String sql, Object[] parameters, int[] ids) {
+        if (version == version(table))
+            results.put(new Key(sql, parameters), new Result(ids, version));
+    }
+
+    // drop every result over `table`, e.g. after a write that bypassed the EntityManagers
+    public void invalidate(String table) {
+        versions.computeIfAbsent(normalize(table), key -> new AtomicLong()).incrementAndGet();
+    }
+
+    public void clear() {
+        results.clear();
+    }
+
+    // number of cached results, including ones already outdated by a write
+    public long size() {
+        return results.size();
+    }
+
+    // lookups answered from the cache
+    public long getHits() {
+        return hits.sum();
+    }
+
+    // lookups that found no result, or one outdated by a write
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    // report hits, misses and size as gauges named <name>.hits, <name>.misses and <name>.size
+    public void registerMetrics(MetricsRegistry registry, String name) {
+        registry.gauge(name + ".hits", hits::sum);
+        registry.gauge(name + ".misses", misses::sum);
+        registry.gauge(name + ".size", this::size);
+    }
+
+    private static String normalize(String table) {
+        return table.toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Key {
+        private final String sql;
+        private final Object[] parameters;
+        private final int hash;
+
+        Key(String sql, Object[] parameters) {
+            this.sql = sql;
+            this.parameters = parameters.clone();
+            this.hash = 31 * sql.hashCode() + Arrays.hashCode(parameters);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key key = (Key) other;
+            return hash == key.hash && sql.equals(key.sql) && Arrays.equals(parameters, key.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Result {
+        final int[] ids;
+        final long version;
+
+        Result(int[] ids, long version) {
+            this.ids = ids;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.example;
+
+// the value of a @ManyToOne field: the id of the target entity, and the entity itself once loaded.
+// references hydrated by an EntityManager load their target on the first get(); one made with
+// to(entity) already holds it.
+public final class Reference<T> {
+    private final int id;
+    private T entity;
+    private boolean loaded;
+    private AssociationLoader.Batch<Reference<T>> batch; // how to load it, null when built by hand
+
+    private Reference(int id, T entity, boolean loaded) {
+        this.id = id;
+        this.entity = entity;
+        this.loaded = loaded;
+    }
+
+    // a reference to an entity, which may still get its id from insert
+    public static <T> Reference<T> to(T entity) {
+        return new Reference<>(0, entity, true);
+    }
+
+    // a reference to the entity with this id, without loading it; saving it only needs the id
+    public static <T> Reference<T> toId(int id) {
+        return new Reference<>(id, null, false);
+    }
+
+    public int id() {
+        T entity;
+        synchronized (this) {
+            entity = this.entity;
+        }
+        return entity != null ? EntityMetadata.of(entity).id(entity) : id;
+    }
+
+    // the target entity, loaded on first use; null if no row has this id
+    public T get() {
+        AssociationLoader.Batch<Reference<T>> batch;
+        synchronized (this) {
+            if (loaded)
+                return entity;
+            batch = this.batch;
+        }
+        if (batch == null)
+            throw new IllegalStateException("reference to id " + id + " was not loaded by an EntityManager");
+        batch.load(this);
+        synchronized (this) {
+            return entity;
+        }
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    synchronized void attach(AssociationLoader.Batch<Reference<T>> batch) {
+        this.batch = batch;
+    }
+
+    void resolve(T entity) {
+        AssociationLoader.Batch<Reference<T>> batch;
+        synchronized (this) {
+            this.entity = entity;
+            this.loaded = true;
+            batch = this.batch;
+            this.batch = null;
+        }
+        // outside this reference's lock, as the batch looks at its references while holding its own
+        if (batch != null)
+            batch.remove(this);
+    }
+
+    @Override
+    public String toString() {
+        return "Reference(" + id() + (isLoaded() ? ")" : ", not loaded)");
+    }
+}
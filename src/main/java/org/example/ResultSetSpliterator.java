@@ -0,0 +1,58 @@
+package org.example;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+// walks a forward-only result set one row at a time, so a stream over it never holds more than
+// the driver's fetch buffer in memory. resources are released when the last row has been read,
+// or when the stream is closed early; onClose then gets the number of rows read.
+final class ResultSetSpliterator<R> extends Spliterators.AbstractSpliterator<R> implements AutoCloseable {
+    private final ResultSet rs;
+    private final RowMapper<R> mapper;
+    private final AutoCloseable resources;
+    private final LongConsumer onClose;
+    private long rows;
+    private boolean closed;
+
+    ResultSetSpliterator(ResultSet rs, RowMapper<R> mapper, AutoCloseable resources, LongConsumer onClose) {
+        super(Long.MAX_VALUE, ORDERED | NONNULL);
+        this.rs = rs;
+        this.mapper = mapper;
+        this.resources = resources;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super R> action) {
+        if (closed)
+            return false;
+        try {
+            if (!rs.next()) {
+                close();
+                return false;
+            }
+            rows++;
+            action.accept(mapper.map(rs));
+            return true;
+        } catch (SQLException e) {
+            close();
+            throw new RuntimeException("Error reading the next row", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        onClose.accept(rows);
+        try {
+            resources.close();
+        } catch (Exception e) {
+            throw new RuntimeException("Error releasing the result set", e);
+        }
+    }
+}
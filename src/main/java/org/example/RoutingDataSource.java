@@ -0,0 +1,245 @@
+package org.example;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// read/write splitting over a primary and any number of read replicas, each with its own pool.
+// getConnection() always goes to the primary, so writes and transactions run there; EntityManager
+// asks getReadConnection() for reads outside a transaction, which are spread over the replicas.
+//
+// replicas lag behind the primary, so a read right after a write may not see it yet. find() after
+// insert/update is served from the cache, and a query or findAll returns the cached entity over the
+// replica's row; for anything else that must see its own writes, read inside executeInTransaction.
+public class RoutingDataSource implements PooledDataSource {
+    private static final Logger LOGGER = Logger.getLogger(RoutingDataSource.class.getName());
+
+    public enum Balancing {
+        ROUND_ROBIN, // replicas take turns
+        LEAST_BUSY // the replica with the smallest share of its pool in use or waited for
+    }
+
+    private final CustomDataSource primary;
+    private final List<CustomDataSource> replicas;
+    private final Balancing balancing;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public RoutingDataSource() {
+        this(CustomDataSource.loadProperties());
+    }
+
+    // the primary is configured by the usual db.* properties. db.replica.urls lists the replicas,
+    // comma separated; they use db.replica.username/db.replica.password (the primary's by default)
+    // and the db.pool.* settings of the primary. db.replica.balancing is round-robin or least-busy.
+    public RoutingDataSource(Properties props) {
+        this(new CustomDataSource(props), replicas(props), balancing(props.getProperty("db.replica.balancing", "round-robin")));
+    }
+
+    public RoutingDataSource(CustomDataSource primary, List<CustomDataSource> replicas, Balancing balancing) {
+        this.primary = primary;
+        this.replicas = List.copyOf(replicas);
+        this.balancing = balancing;
+    }
+
+    private static List<CustomDataSource> replicas(Properties props) {
+        List<CustomDataSource> replicas = new ArrayList<>();
+        String urls = props.getProperty("db.replica.urls", "").trim();
+        if (urls.isEmpty())
+            return replicas;
+        String poolName = props.getProperty("db.pool.name", "default");
+        for (String url : urls.split(",")) {
+            Properties replicaProps = new Properties();
+            replicaProps.putAll(props);
+            replicaProps.setProperty("db.url", url.trim());
+            replicaProps.setProperty("db.username", props.getProperty("db.replica.username", props.getProperty("db.username")));
+            replicaProps.setProperty("db.password", props.getProperty("db.replica.password", props.getProperty("db.password")));
+            replicaProps.setProperty("db.pool.name", poolName + "-replica-" + (replicas.size() + 1));
+            replicas.add(new CustomDataSource(replicaProps));
+        }
+        return replicas;
+    }
+
+    private static Balancing balancing(String name) {
+        switch (name) {
+            case "round-robin":
+                return Balancing.ROUND_ROBIN;
+            case "least-busy":
+                return Balancing.LEAST_BUSY;
+            default:
+                throw new IllegalArgumentException("unknown db.replica.balancing: " + name);
+        }
+    }
+
+    public CustomDataSource getPrimary() {
+        return primary;
+    }
+
+    public List<CustomDataSource> getReplicas() {
+        return replicas;
+    }
+
+    // a connection to the primary, for writes and transactions
+    @Override
+    public Connection getConnection() throws SQLException {
+        return primary.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return primary.getConnection(username, password);
+    }
+
+    // a connection to one of the replicas, or to the primary when there are none. a replica that
+    // cannot hand out a connection (down, or its pool timed out) is skipped for the primary.
+    @Override
+    public Connection getReadConnection() throws SQLException {
+        if (replicas.isEmpty())
+            return primary.getConnection();
+        CustomDataSource replica = pickReplica();
+        try {
+            return replica.getConnection();
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "replica " + replica.getPoolName() + " unavailable, reading from the primary", e);
+            return primary.getConnection();
+        }
+    }
+
+    private CustomDataSource pickReplica() {
+        int start = next.getAndIncrement();
+        if (balancing == Balancing.ROUND_ROBIN)
+            return replicas.get(Math.floorMod(start, replicas.size()));
+        // least busy: compare (active + waiting) / maxPoolSize without dividing. the scan starts at
+        // a rotating replica, so ties (e.g. all idle) are still spread round-robin.
+        CustomDataSource best = null;
+        long bestLoad = 0;
+        int bestSize = 1;
+        for (int i = 0; i < replicas.size(); i++) {
+            CustomDataSource replica = replicas.get(Math.floorMod(start + i, replicas.size()));
+            long load = replica.getActiveConnections() + replica.getThreadsAwaiting();
+            if (best == null || load * bestSize < bestLoad * replica.getMaxPoolSize()) {
+                best = replica;
+                bestLoad = load;
+                bestSize = replica.getMaxPoolSize();
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public int getMaxPoolSize() {
+        int size = primary.getMaxPoolSize();
+        for (CustomDataSource replica : replicas)
+            size += replica.getMaxPoolSize();
+        return size;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        int active = primary.getActiveConnections();
+        for (CustomDataSource replica : replicas)
+            active += replica.getActiveConnections();
+        return active;
+    }
+
+    @Override
+    public int getIdleConnections() {
+        int idle = primary.getIdleConnections();
+        for (CustomDataSource replica : replicas)
+            idle += replica.getIdleConnections();
+        return idle;
+    }
+
+    @Override
+    public int getTotalConnections() {
+        int total = primary.getTotalConnections();
+        for (CustomDataSource replica : replicas)
+            total += replica.getTotalConnections();
+        return total;
+    }
+
+    @Override
+    public int getThreadsAwaiting() {
+        int awaiting = primary.getThreadsAwaiting();
+        for (CustomDataSource replica : replicas)
+            awaiting += replica.getThreadsAwaiting();
+        return awaiting;
+    }
+
+    // every pool reports under its own db.pool.name, the replicas as <name>-replica-<n>
+    @Override
+    public void setMetricsRegistry(MetricsRegistry registry) {
+        primary.setMetricsRegistry(registry);
+        for (CustomDataSource replica : replicas)
+            replica.setMetricsRegistry(registry);
+    }
+
+    @Override
+    public void closeAllConnections() throws SQLException {
+        SQLException failure = null;
+        for (CustomDataSource dataSource : allPools()) {
+            try {
+                dataSource.closeAllConnections();
+            } catch (SQLException e) {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private List<CustomDataSource> allPools() {
+        List<CustomDataSource> pools = new ArrayList<>(replicas.size() + 1);
+        pools.add(primary);
+        pools.addAll(replicas);
+        return pools;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return primary.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        for (CustomDataSource dataSource : allPools())
+            dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        for (CustomDataSource dataSource : allPools())
+            dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return primary.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return LOGGER;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this))
+            return iface.cast(this);
+        throw new SQLException("The DataSource is not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+}
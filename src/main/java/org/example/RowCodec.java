@@ -0,0 +1,118 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// the compact binary form of an entity row, shared by OffHeapCache and the binary files of
+// BulkTransfer. columns follow @Column order: a bitmap of the null columns, then 4 bytes per int
+// column and a length-prefixed UTF-8 string per String column. only the types createTable supports
+// can be encoded.
+final class RowCodec<T> {
+    private final EntityMetadata<T> metadata;
+    private final ColumnMetadata[] columns;
+    private final int nullBytes; // size of the null column bitmap
+
+    RowCodec(EntityMetadata<T> metadata) {
+        for (ColumnMetadata column : metadata.columns()) {
+            if (column.type() != int.class && column.type() != String.class)
+                throw new IllegalArgumentException("column " + column.name() + " of type " +
+                        column.type().getName() + " has no binary form");
+        }
+        this.metadata = metadata;
+        this.columns = metadata.columns().toArray(new ColumnMetadata[0]);
+        this.nullBytes = (columns.length + 7) >>> 3;
+    }
+
+    // identifies the row format, e.g. to reject a file written for other columns
+    int layoutHash() {
+        StringBuilder layout = new StringBuilder(metadata.tableName());
+        for (ColumnMetadata column : columns)
+            layout.append(',').append(column.name()).append(' ').append(column.type().getName());
+        return layout.toString().hashCode();
+    }
+
+    byte[] encode(T entity) {
+        Object[] values = new Object[columns.length];
+        int length = nullBytes;
+        for (int i = 0; i < columns.length; i++) {
+            Object value = columns[i].get(entity);
+            if (value instanceof String) {
+                byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                values[i] = bytes;
+                length += lengthSize(bytes.length) + bytes.length;
+            } else if (value != null) {
+                values[i] = value;
+                length += Integer.BYTES;
+            }
+        }
+        ByteBuffer row = ByteBuffer.allocate(length);
+        row.position(nullBytes);
+        for (int i = 0; i < columns.length; i++) {
+            Object value = values[i];
+            if (value == null) {
+                row.put(i >>> 3, (byte) (row.get(i >>> 3) | 1 << (i & 7)));
+            } else if (value instanceof byte[]) {
+                byte[] bytes = (byte[]) value;
+                writeLength(row, bytes.length);
+                row.put(bytes);
+            } else {
+                row.putInt(((Number) value).intValue());
+            }
+        }
+        return row.array();
+    }
+
+    // a new entity from the row starting at the position of `row`, which is left after it
+    T decode(ByteBuffer row) {
+        T entity = metadata.newInstance();
+        int nulls = row.position();
+        row.position(nulls + nullBytes);
+        for (int i = 0; i < columns.length; i++) {
+            if ((row.get(nulls + (i >>> 3)) & (1 << (i & 7))) != 0)
+                continue; // a new entity already holds null / 0
+            ColumnMetadata column = columns[i];
+            if (column.type() == int.class) {
+                column.set(entity, row.getInt());
+            } else {
+                int length = readLength(row);
+                String value;
+                if (row.hasArray()) {
+                    value = new String(row.array(), row.arrayOffset() + row.position(), length, StandardCharsets.UTF_8);
+                    row.position(row.position() + length);
+                } else {
+                    byte[] bytes = new byte[length];
+                    row.get(bytes);
+                    value = new String(bytes, StandardCharsets.UTF_8);
+                }
+                column.set(entity, value);
+            }
+        }
+        return entity;
+    }
+
+    // lengths take 7 bits per byte, so most take a single byte
+    static int lengthSize(int length) {
+        int size = 1;
+        while ((length >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    static void writeLength(ByteBuffer buffer, int length) {
+        while ((length & ~0x7f) != 0) {
+            buffer.put((byte) (length & 0x7f | 0x80));
+            length >>>= 7;
+        }
+        buffer.put((byte) length);
+    }
+
+    static int readLength(ByteBuffer buffer) {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            length |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return length;
+        }
+    }
+}
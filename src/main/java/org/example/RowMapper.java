@@ -0,0 +1,9 @@
+package org.example;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// turns the current row of a result set into an object
+interface RowMapper<R> {
+    R map(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,20 @@
+package org.example;
+
+// maps an entity id to the shard that owns its row, a number in [0, shards)
+@FunctionalInterface
+public interface ShardFunction {
+    int shardFor(int id);
+
+    // id % shards: even spread, but adding a shard moves almost every row
+    static ShardFunction modulo(int shards) {
+        if (shards < 1)
+            throw new IllegalArgumentException("need at least one shard");
+        return id -> Math.floorMod(id, shards);
+    }
+
+    // consistent hashing: every shard owns the hash ranges ending at 128 points on a ring, so adding
+    // a shard only moves the ids of the ranges it takes over (about 1/shards of them)
+    static ShardFunction consistentHash(int shards) {
+        return new ConsistentHashShardFunction(shards, 128);
+    }
+}
@@ -0,0 +1,306 @@
+package org.example;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// rows of one entity class spread over several databases by id, each with its own pool and
+// EntityManager. the shard function decides which shard owns an id: find/update go to that shard,
+// findAll/insertAll/updateAll group their ids per shard and run the groups in parallel, and full
+// scans (stream, selectAndPrintAll) run on every shard at once and merge the results.
+//
+// new rows get their id from IdBlockAllocator before they are inserted, since the AUTO_INCREMENT of
+// every shard would hand out the same ids. a transaction covers a single shard, see executeInTransaction.
+public class ShardedEntityManager<T> implements AutoCloseable {
+    private final List<PooledDataSource> dataSources;
+    private final List<EntityManager<T>> shards;
+    private final ShardFunction shardFunction;
+    private final ExecutorService fanOut;
+    private final ConcurrentHashMap<Class<?>, IdBlockAllocator> idAllocators = new ConcurrentHashMap<>();
+    private volatile int idBlockSize = 100;
+
+    // the shards share `cache`: ids are unique over all shards, so they cannot collide in it
+    public ShardedEntityManager(List<? extends PooledDataSource> dataSources, ShardFunction shardFunction,
+                                Cache<Integer, T> cache) {
+        if (dataSources.isEmpty())
+            throw new IllegalArgumentException("need at least one shard");
+        this.dataSources = List.copyOf(dataSources);
+        this.shardFunction = shardFunction;
+        List<EntityManager<T>> shards = new ArrayList<>();
+        for (PooledDataSource dataSource : dataSources)
+            shards.add(new EntityManager<>(dataSource, cache));
+        this.shards = List.copyOf(shards);
+        AtomicInteger count = new AtomicInteger();
+        this.fanOut = Executors.newFixedThreadPool(shards.size(), runnable -> {
+            Thread thread = new Thread(runnable, "shard-fan-out-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // ids reserved per round trip to the id table
+    public void setIdBlockSize(int idBlockSize) {
+        if (idBlockSize < 1)
+            throw new IllegalArgumentException("id block size must be positive");
+        this.idBlockSize = idBlockSize;
+    }
+
+    // the EntityManager of the shard owning `id`, e.g. to configure it or run a query on that shard only
+    public EntityManager<T> shard(int id) {
+        int shard = shardFunction.shardFor(id);
+        if (shard < 0 || shard >= shards.size())
+            throw new IllegalStateException("shard function returned " + shard + " for id " + id +
+                    ", there are " + shards.size() + " shards");
+        return shards.get(shard);
+    }
+
+    public List<EntityManager<T>> shards() {
+        return shards;
+    }
+
+    // create the table on every shard, and the id table on the first one
+    public void createTable(Class<T> entityClass) throws Exception {
+        List<Callable<Void>> calls = new ArrayList<>();
+        for (EntityManager<T> shard : shards) {
+            calls.add(() -> {
+                shard.createTable(entityClass);
+                return null;
+            });
+        }
+        inParallel(calls);
+        try (Connection connection = dataSources.get(0).getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute(IdBlockAllocator.CREATE_TABLE_SQL);
+        }
+    }
+
+    public T find(Class<T> entityClass, int primaryKey) throws Exception {
+        return shard(primaryKey).find(entityClass, primaryKey);
+    }
+
+    // the result follows the order of `ids`, ids without a row are left out
+    public List<T> findAll(Class<T> entityClass, Collection<Integer> ids) throws Exception {
+        Map<EntityManager<T>, List<Integer>> byShard = new LinkedHashMap<>();
+        for (Integer id : ids)
+            byShard.computeIfAbsent(shard(id), key -> new ArrayList<>()).add(id);
+        List<Callable<List<T>>> calls = new ArrayList<>();
+        byShard.forEach((shard, shardIds) -> calls.add(() -> shard.findAll(entityClass, shardIds)));
+
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        Map<Integer, T> found = new HashMap<>();
+        for (List<T> entities : inParallel(calls)) {
+            for (T entity : entities)
+                found.put(metadata.id(entity), entity);
+        }
+        List<T> result = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            T entity = found.get(id);
+            if (entity != null)
+                result.add(entity);
+        }
+        return result;
+    }
+
+    // an entity without an id gets one from the id allocator first, which also picks its shard
+    public void insert(T entity) throws Exception {
+        assignId(entity);
+        EntityMetadata<T> metadata = EntityMetadata.of(entity);
+        shard(metadata.id(entity)).insert(entity);
+    }
+
+    public void insertAll(Collection<T> entities) throws Exception {
+        if (entities.isEmpty())
+            return;
+        for (T entity : entities)
+            assignId(entity);
+        List<Callable<Void>> calls = new ArrayList<>();
+        groupByShard(entities).forEach((shard, group) -> calls.add(() -> {
+            shard.insertAll(group);
+            return null;
+        }));
+        inParallel(calls);
+    }
+
+    public void update(T entity) throws Exception {
+        shard(EntityMetadata.of(entity).id(entity)).update(entity);
+    }
+
+    public void updateAll(Collection<T> entities) throws Exception {
+        if (entities.isEmpty())
+            return;
+        List<Callable<Void>> calls = new ArrayList<>();
+        groupByShard(entities).forEach((shard, group) -> calls.add(() -> {
+            shard.updateAll(group);
+            return null;
+        }));
+        inParallel(calls);
+    }
+
+    // run a transaction on the shard owning `id`. every call in it must stay on that shard.
+    public void executeInTransaction(int id, TransactionCallback<T> callback) throws Exception {
+        shard(id).executeInTransaction(callback);
+    }
+
+    // stream every entity, see stream(Class, String, Object...)
+    public Stream<T> stream(Class<T> entityClass) throws Exception {
+        return stream(entityClass, null);
+    }
+
+    // the queries of all shards are started in parallel, then their rows are read one shard after the
+    // other. closing the stream closes every shard's cursor.
+    public Stream<T> stream(Class<T> entityClass, String whereClause, Object... parameters) throws Exception {
+        List<Callable<Stream<T>>> calls = new ArrayList<>();
+        for (EntityManager<T> shard : shards)
+            calls.add(() -> shard.stream(entityClass, whereClause, parameters));
+        List<Stream<T>> streams = inParallel(calls, Stream::close);
+        return streams.stream().flatMap(stream -> stream).onClose(() -> streams.forEach(Stream::close));
+    }
+
+    // every shard streams its rows in id order, all of them in parallel. the streams are merged as the
+    // rows are printed, so no more than one row per shard is held at a time.
+    public void selectAndPrintAll(Class<T> entityClass) throws Exception {
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        System.out.println("\nSelecting and printing all records from " + metadata.tableName() +
+                " table on " + shards.size() + " shards");
+        List<Callable<Stream<T>>> calls = new ArrayList<>();
+        for (EntityManager<T> shard : shards) {
+            calls.add(() -> metadata.hasId()
+                    ? shard.query(entityClass).orderBy(metadata.idColumn().name()).getResultStream()
+                    : shard.query(entityClass).getResultStream());
+        }
+        List<Stream<T>> streams = inParallel(calls, Stream::close);
+        try {
+            StringBuilder line = new StringBuilder();
+            for (ColumnMetadata column : metadata.columns())
+                line.append(column.name()).append('\t');
+            System.out.println(line);
+            Iterator<T> entities = metadata.hasId()
+                    ? mergeById(metadata, streams)
+                    : streams.stream().flatMap(stream -> stream).iterator();
+            while (entities.hasNext()) {
+                T entity = entities.next();
+                line.setLength(0);
+                for (ColumnMetadata column : metadata.columns())
+                    line.append(column.get(entity)).append('\t');
+                System.out.println(line);
+            }
+        } finally {
+            streams.forEach(Stream::close);
+        }
+    }
+
+    // k-way merge of streams that are each sorted by id: a queue holds the next entity of every stream
+    private static <T> Iterator<T> mergeById(EntityMetadata<T> metadata, List<Stream<T>> streams) {
+        PriorityQueue<Head<T>> heads = new PriorityQueue<>(Math.max(1, streams.size()),
+                (a, b) -> Integer.compare(metadata.id(a.entity), metadata.id(b.entity)));
+        for (Stream<T> stream : streams) {
+            Iterator<T> iterator = stream.iterator();
+            if (iterator.hasNext())
+                heads.add(new Head<>(iterator.next(), iterator));
+        }
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                Head<T> head = heads.poll();
+                if (head == null)
+                    throw new NoSuchElementException();
+                if (head.rest.hasNext())
+                    heads.add(new Head<>(head.rest.next(), head.rest));
+                return head.entity;
+            }
+        };
+    }
+
+    // the next entity of one stream, and the stream's remaining entities
+    private static final class Head<T> {
+        final T entity;
+        final Iterator<T> rest;
+
+        Head(T entity, Iterator<T> rest) {
+            this.entity = entity;
+            this.rest = rest;
+        }
+    }
+
+    // stop the fan-out threads, the data sources are closed by their owner
+    @Override
+    public void close() {
+        fanOut.shutdown();
+    }
+
+    private void assignId(T entity) throws Exception {
+        EntityMetadata<T> metadata = EntityMetadata.of(entity);
+        if (!metadata.needsGeneratedId(entity))
+            return;
+        IdBlockAllocator allocator = idAllocators.computeIfAbsent(metadata.entityClass(),
+                entityClass -> new IdBlockAllocator(dataSources, metadata, idBlockSize));
+        metadata.idColumn().set(entity, allocator.nextId());
+    }
+
+    private Map<EntityManager<T>, List<T>> groupByShard(Collection<T> entities) {
+        EntityMetadata<T> metadata = EntityMetadata.of(entities.iterator().next());
+        Map<EntityManager<T>, List<T>> byShard = new LinkedHashMap<>();
+        for (T entity : entities)
+            byShard.computeIfAbsent(shard(metadata.id(entity)), key -> new ArrayList<>()).add(entity);
+        return byShard;
+    }
+
+    private <R> List<R> inParallel(List<Callable<R>> calls) throws Exception {
+        return inParallel(calls, result -> {
+        });
+    }
+
+    // run the calls on the fan-out threads and wait for all of them. a single call runs on the calling
+    // thread, so it still sees a transaction open there. when a call fails, the results of the others
+    // are handed to `discard` (e.g. to close them) and the first failure is thrown.
+    private <R> List<R> inParallel(List<Callable<R>> calls, Consumer<R> discard) throws Exception {
+        List<R> results = new ArrayList<>(calls.size());
+        if (calls.size() == 1) {
+            results.add(calls.get(0).call());
+            return results;
+        }
+        List<Future<R>> futures = new ArrayList<>(calls.size());
+        for (Callable<R> call : calls)
+            futures.add(fanOut.submit(call));
+        Exception failure = null;
+        for (Future<R> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                if (failure == null)
+                    failure = cause;
+                else
+                    failure.addSuppressed(cause);
+            }
+        }
+        if (failure != null) {
+            for (R result : results)
+                discard.accept(result);
+            throw failure;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,68 @@
+package org.example;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// the default MetricsRegistry: keeps LogHistograms, LongAdder counters and gauges in memory and
+// reports them on demand
+public class SimpleMetricsRegistry implements MetricsRegistry {
+    static final SimpleMetricsRegistry DEFAULT = new SimpleMetricsRegistry();
+
+    private final ConcurrentHashMap<String, LogHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AdderCounter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    @Override
+    public LogHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LogHistogram());
+    }
+
+    @Override
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new AdderCounter());
+    }
+
+    // registering a gauge under an existing name replaces it
+    @Override
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public long counterValue(String name) {
+        AdderCounter counter = counters.get(name);
+        return counter == null ? 0 : counter.value.sum();
+    }
+
+    public long gaugeValue(String name) {
+        LongSupplier gauge = gauges.get(name);
+        return gauge == null ? 0 : gauge.getAsLong();
+    }
+
+    // one line per metric, sorted by name. latencies are in nanoseconds.
+    public String report() {
+        Map<String, String> lines = new TreeMap<>();
+        histograms.forEach((name, histogram) -> lines.put(name, histogram.toString()));
+        counters.forEach((name, counter) -> lines.put(name, String.valueOf(counter.value.sum())));
+        gauges.forEach((name, gauge) -> lines.put(name, String.valueOf(gauge.getAsLong())));
+        StringBuilder report = new StringBuilder();
+        lines.forEach((name, value) -> report.append(name).append(' ').append(value).append('\n'));
+        return report.toString();
+    }
+
+    private static final class AdderCounter implements Counter {
+        final LongAdder value = new LongAdder();
+
+        @Override
+        public void increment() {
+            value.increment();
+        }
+
+        @Override
+        public void add(long amount) {
+            value.add(amount);
+        }
+    }
+}
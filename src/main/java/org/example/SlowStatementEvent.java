@@ -0,0 +1,24 @@
+package org.example;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// JFR event for a statement that took longer than the EntityManager's slow statement threshold
+@Name("org.example.SlowStatement")
+@Label("Slow Statement")
+@Category({"ORM", "JDBC"})
+@Description("A SQL statement that took longer than the slow statement threshold")
+final class SlowStatementEvent extends jdk.jfr.Event {
+    @Label("SQL")
+    String sql;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+}
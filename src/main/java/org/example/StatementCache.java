@@ -0,0 +1,180 @@
+package org.example;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// the prepared statements of one physical connection, keyed by SQL text (and the result set /
+// generated keys options). closing a statement handed out from here puts it back instead of
+// closing it, so the next prepareStatement() of the same SQL skips parsing and, with server-side
+// prepares, the extra prepare round trip. the least recently returned statements are closed when
+// the cache is full.
+final class StatementCache {
+    private final Connection physical;
+    private final int maxSize;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    // idle statements, least recently returned first. a statement in use is not in the map, so two
+    // statements for the same SQL can be open at once (e.g. a stream and a find on one connection).
+    private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<>();
+    private boolean closed;
+
+    StatementCache(Connection physical, int maxSize, LongAdder hits, LongAdder misses) {
+        this.physical = physical;
+        this.maxSize = maxSize;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    // the cached equivalent of connection.prepareStatement(args...), or null if that variant is not cached
+    PreparedStatement prepare(Connection owner, Object[] args) throws SQLException {
+        String key = key(args);
+        if (key == null)
+            return null;
+
+        PreparedStatement statement = take(key);
+        if (statement != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            String sql = (String) args[0];
+            if (args.length == 1)
+                statement = physical.prepareStatement(sql);
+            else if (args.length == 2)
+                statement = physical.prepareStatement(sql, (Integer) args[1]);
+            else
+                statement = physical.prepareStatement(sql, (Integer) args[1], (Integer) args[2]);
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new Handle(owner, key, statement));
+    }
+
+    // close every cached statement, called when the pool retires the physical connection
+    synchronized void close() {
+        closed = true;
+        for (PreparedStatement statement : statements.values())
+            closeQuietly(statement);
+        statements.clear();
+    }
+
+    // prepareStatement(sql), (sql, autoGeneratedKeys) and (sql, resultSetType, resultSetConcurrency)
+    private static String key(Object[] args) {
+        if (args.length == 1)
+            return (String) args[0];
+        if (args.length == 2 && args[1] instanceof Integer)
+            return args[0] + "\u0000keys=" + args[1];
+        if (args.length == 3)
+            return args[0] + "\u0000type=" + args[1] + "," + args[2];
+        return null;
+    }
+
+    private synchronized PreparedStatement take(String key) {
+        PreparedStatement statement = statements.remove(key);
+        try {
+            // a caller may have closed the real statement, e.g. through ResultSet#getStatement()
+            if (statement != null && statement.isClosed())
+                return null;
+        } catch (SQLException e) {
+            return null;
+        }
+        return statement;
+    }
+
+    private void giveBack(String key, PreparedStatement statement, int defaultFetchSize) {
+        try {
+            // leave nothing behind for the next user of the statement
+            ResultSet rs = statement.getResultSet();
+            if (rs != null)
+                rs.close();
+            statement.clearParameters();
+            statement.clearBatch();
+            if (statement.getFetchSize() != defaultFetchSize)
+                statement.setFetchSize(defaultFetchSize);
+        } catch (SQLException e) {
+            closeQuietly(statement);
+            return;
+        }
+
+        synchronized (this) {
+            if (closed || statements.containsKey(key)) {
+                closeQuietly(statement);
+                return;
+            }
+            statements.put(key, statement);
+            Iterator<PreparedStatement> eldest = statements.values().iterator();
+            while (statements.size() > maxSize) {
+                closeQuietly(eldest.next());
+                eldest.remove();
+            }
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+            // the statement is being thrown away anyway
+        }
+    }
+
+    // the PreparedStatement a caller holds until close()
+    private final class Handle implements InvocationHandler {
+        private final Connection owner;
+        private final String key;
+        private final PreparedStatement statement;
+        private final int defaultFetchSize;
+        private boolean closed;
+
+        Handle(Connection owner, String key, PreparedStatement statement) throws SQLException {
+            this.owner = owner;
+            this.key = key;
+            this.statement = statement;
+            this.defaultFetchSize = statement.getFetchSize();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        giveBack(key, statement, defaultFetchSize);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || statement.isClosed();
+                case "getConnection":
+                    return owner; // the borrower's connection, not the physical one
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "cached " + statement;
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy))
+                        return proxy;
+                    break;
+                case "isWrapperFor":
+                    if (((Class<?>) args[0]).isInstance(proxy))
+                        return true;
+                    break;
+            }
+            if (closed)
+                throw new SQLException("Statement is closed");
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.example;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// the transaction running on the current thread. while it is open every EntityManager operation
+// against the same data source runs on its connection instead of borrowing another one.
+final class TransactionContext {
+    private static final ThreadLocal<TransactionContext> current = new ThreadLocal<>();
+
+    private final DataSource dataSource;
+    private final Connection connection;
+    private final TransactionContext outer; // a transaction on another data source, restored on end()
+    private final List<Runnable> rollbackActions = new ArrayList<>();
+    private final List<Runnable> commitActions = new ArrayList<>();
+    private final Map<Object, UnitOfWork<?>> unitsOfWork = new LinkedHashMap<>(); // by EntityManager
+    // for every savepoint that can still be rolled back to, how many rollback actions were registered before it
+    private final Map<Savepoint, Integer> savepoints = new IdentityHashMap<>();
+    private boolean rollbackOnly;
+
+    private TransactionContext(DataSource dataSource, Connection connection, TransactionContext outer) {
+        this.dataSource = dataSource;
+        this.connection = connection;
+        this.outer = outer;
+    }
+
+    // bind a connection with auto-commit already disabled to the current thread
+    static TransactionContext begin(DataSource dataSource, Connection connection) {
+        TransactionContext context = new TransactionContext(dataSource, connection, current.get());
+        current.set(context);
+        return context;
+    }
+
+    // the transaction on `dataSource` running on this thread, or null
+    static TransactionContext current(DataSource dataSource) {
+        for (TransactionContext context = current.get(); context != null; context = context.outer) {
+            if (context.dataSource == dataSource)
+                return context;
+        }
+        return null;
+    }
+
+    void end() {
+        if (outer == null)
+            current.remove();
+        else
+            current.set(outer);
+    }
+
+    Connection connection() {
+        return connection;
+    }
+
+    // undo in-memory side effects (e.g. cache entries) of writes if the transaction rolls back
+    void onRollback(Runnable action) {
+        rollbackActions.add(action);
+    }
+
+    // publish in-memory side effects (e.g. invalidating cached query results) once the writes are committed
+    void onCommit(Runnable action) {
+        commitActions.add(action);
+    }
+
+    // remember where `savepoint` was set, so rolling back to it undoes only what came after
+    void savepointSet(Savepoint savepoint) {
+        savepoints.put(savepoint, rollbackActions.size());
+    }
+
+    // the writes after a released savepoint now belong to the enclosing level
+    void savepointReleased(Savepoint savepoint) {
+        savepoints.remove(savepoint);
+    }
+
+    // the connection was rolled back to `savepoint`: undo the side effects registered since, newest
+    // first. the savepoint itself stays valid, the ones set after it are gone.
+    void rolledBackTo(Savepoint savepoint) {
+        Integer mark = savepoints.get(savepoint);
+        if (mark == null)
+            return;
+        for (int i = rollbackActions.size() - 1; i >= mark; i--)
+            rollbackActions.remove(i).run();
+        savepoints.values().removeIf(other -> other > mark);
+    }
+
+    void committed() {
+        for (Runnable action : commitActions)
+            action.run();
+        commitActions.clear();
+        rollbackActions.clear();
+        savepoints.clear();
+    }
+
+    void rolledBack() {
+        for (UnitOfWork<?> unitOfWork : unitsOfWork.values())
+            unitOfWork.clear();
+        for (Runnable action : rollbackActions)
+            action.run();
+        rollbackActions.clear();
+        commitActions.clear();
+        savepoints.clear();
+    }
+
+    // the writes `owner` deferred in this transaction
+    @SuppressWarnings("unchecked")
+    <T> UnitOfWork<T> unitOfWork(Object owner, Supplier<UnitOfWork<T>> factory) {
+        return (UnitOfWork<T>) unitsOfWork.computeIfAbsent(owner, key -> factory.get());
+    }
+
+    // run the deferred writes of every EntityManager, in the order they first deferred one.
+    // called before commit, before savepoints and before reads that must see the writes.
+    void flush() throws SQLException {
+        for (UnitOfWork<?> unitOfWork : unitsOfWork.values()) {
+            try {
+                unitOfWork.flush();
+            } catch (SQLException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SQLException("flushing deferred writes failed", e);
+            }
+        }
+    }
+
+    // set when a joined (nested) transaction failed, the outermost one then rolls back
+    void setRollbackOnly() {
+        rollbackOnly = true;
+    }
+
+    boolean isRollbackOnly() {
+        return rollbackOnly;
+    }
+}
@@ -0,0 +1,58 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// the inserts and updates one EntityManager recorded in a transaction instead of running them.
+// entities are tracked by identity and their state is read at flush time, so repeated updates of
+// an entity, or updates of an entity inserted in the same transaction, cost nothing extra.
+final class UnitOfWork<T> {
+    interface Flusher<T> {
+        void flush(List<T> inserts, List<T> updates) throws Exception;
+    }
+
+    private final Flusher<T> flusher;
+    private final List<T> inserts = new ArrayList<>();
+    private final List<T> updates = new ArrayList<>();
+    private final Set<T> inserted = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<T> updated = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    UnitOfWork(Flusher<T> flusher) {
+        this.flusher = flusher;
+    }
+
+    void insert(T entity) {
+        if (inserted.add(entity))
+            inserts.add(entity);
+    }
+
+    // an entity that is still waiting to be inserted is simply inserted with its latest values
+    void update(T entity) {
+        if (!inserted.contains(entity) && updated.add(entity))
+            updates.add(entity);
+    }
+
+    boolean isEmpty() {
+        return inserts.isEmpty() && updates.isEmpty();
+    }
+
+    // write everything recorded so far
+    void flush() throws Exception {
+        if (isEmpty())
+            return;
+        List<T> pendingInserts = new ArrayList<>(inserts);
+        List<T> pendingUpdates = new ArrayList<>(updates);
+        clear();
+        flusher.flush(pendingInserts, pendingUpdates);
+    }
+
+    void clear() {
+        inserts.clear();
+        updates.clear();
+        inserted.clear();
+        updated.clear();
+    }
+}
@@ -0,0 +1,409 @@
+package org.example;
+
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// opt-in write-behind in front of an EntityManager, for rows updated so often (counters, last-seen
+// timestamps) that a short durability lag is acceptable. insert/update put the entity in the cache
+// right away and only queue the write; queued writes are coalesced per id, so a row updated a hundred
+// times between two flushes is written once with its latest state. the queue is flushed in JDBC
+// batches every flushInterval, or as soon as batchThreshold writes are waiting. callers block while
+// maxPending writes are queued or being written, until a flush makes room (or maxWait passes).
+//
+// when a batch fails its rows are written one by one, so a single bad row does not hold back the rest.
+// a row the database refuses (a duplicate key, a constraint) is dropped and handed to the failure
+// listener, so is a row that failed maxAttempts flushes in a row. while the database cannot be reached
+// at all, the writes simply stay queued.
+//
+// writes that were queued but not flushed are lost if the JVM dies, so close() it in a shutdown hook.
+public class WriteBehindWriter<T> implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(WriteBehindWriter.class.getName());
+
+    private final EntityManager<T> entityManager;
+    private final int batchThreshold;
+    private final int maxPending;
+    private final ScheduledExecutorService flusher; // a single thread, so flushes never overlap
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    // pending writes by id, in the order they were first queued
+    private Map<Integer, T> inserts = new LinkedHashMap<>();
+    private Map<Integer, T> updates = new LinkedHashMap<>();
+    private int inFlight; // writes taken by the running flush, they still count against maxPending
+    private boolean flushRequested;
+    private boolean closed;
+
+    private final Map<Integer, Integer> attempts = new HashMap<>(); // failed flushes by id, flusher thread only
+    private volatile int maxAttempts = 10;
+    private volatile long maxWaitNanos = TimeUnit.SECONDS.toNanos(30);
+    private volatile WriteFailureListener<T> failureListener = (entity, cause) ->
+            LOGGER.log(Level.SEVERE, "write-behind gave up on a queued write, it is lost", cause);
+
+    private final LongAdder queuedWrites = new LongAdder();
+    private final LongAdder writtenRows = new LongAdder();
+    private final LongAdder droppedWrites = new LongAdder();
+
+    public WriteBehindWriter(EntityManager<T> entityManager) {
+        this(entityManager, 500, 10_000, Duration.ofMillis(200));
+    }
+
+    public WriteBehindWriter(EntityManager<T> entityManager, int batchThreshold, int maxPending, Duration flushInterval) {
+        if (batchThreshold < 1 || maxPending < batchThreshold)
+            throw new IllegalArgumentException("need 0 < batchThreshold <= maxPending");
+        this.entityManager = entityManager;
+        this.batchThreshold = batchThreshold;
+        this.maxPending = maxPending;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "write-behind-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = Math.max(flushInterval.toMillis(), 1);
+        flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // flushes a write may fail before it is dropped, unless the database was unreachable
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("max attempts must be positive");
+        this.maxAttempts = maxAttempts;
+    }
+
+    // how long insert/update wait for room in a full queue before they throw a TimeoutException
+    public void setMaxWait(Duration maxWait) {
+        this.maxWaitNanos = maxWait.toNanos();
+    }
+
+    // told about every write that was dropped, instead of only logging it
+    public void setFailureListener(WriteFailureListener<T> failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    // queue an insert and cache the entity. an entity whose id is generated by the database is
+    // inserted right away instead, since the caller needs its id before it can update it.
+    public void insert(T entity) throws Exception {
+        EntityMetadata<T> metadata = EntityMetadata.of(entity);
+        if (metadata.needsGeneratedId(entity)) {
+            entityManager.insert(entity);
+            writtenRows.increment();
+            return;
+        }
+        int id = metadata.id(entity);
+        lock.lock();
+        try {
+            checkOpen();
+            if (!inserts.containsKey(id))
+                awaitRoom();
+            inserts.put(id, entity);
+            updates.remove(id);
+            cache(id, entity);
+            queued();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // queue an update, replacing any queued write of the same id; an entity that is still waiting
+    // to be inserted is simply inserted with its latest state
+    public void update(T entity) throws InterruptedException, TimeoutException {
+        int id = EntityMetadata.of(entity).id(entity);
+        lock.lock();
+        try {
+            checkOpen();
+            if (inserts.containsKey(id)) {
+                inserts.put(id, entity);
+            } else {
+                if (!updates.containsKey(id))
+                    awaitRoom();
+                updates.put(id, entity);
+            }
+            cache(id, entity);
+            queued();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // write everything queued so far and wait until it is written
+    public void flush() throws Exception {
+        try {
+            flusher.submit(() -> {
+                writePending();
+                return null;
+            }).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    // writes waiting for the next flush
+    public int getPendingWrites() {
+        lock.lock();
+        try {
+            return pending();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // insert/update calls accepted, including the ones coalesced into an earlier write
+    public long getQueuedWrites() {
+        return queuedWrites.sum();
+    }
+
+    // rows actually sent to the database
+    public long getWrittenRows() {
+        return writtenRows.sum();
+    }
+
+    // writes given up on, see setFailureListener
+    public long getDroppedWrites() {
+        return droppedWrites.sum();
+    }
+
+    // stop the timer and write what is still queued
+    @Override
+    public void close() throws Exception {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flush();
+        } finally {
+            flusher.shutdown();
+            flusher.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private void cache(int id, T entity) {
+        Cache<Integer, T> cache = entityManager.cache();
+        if (cache != null)
+            cache.put(id, entity);
+        // still holds the row from before the queued write, the flush stores the new one
+        Cache<Integer, T> secondLevelCache = entityManager.secondLevelCache();
+        if (secondLevelCache != null)
+            secondLevelCache.invalidate(id);
+    }
+
+    private int pending() {
+        return inserts.size() + updates.size();
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("write-behind writer is closed");
+    }
+
+    // backpressure: wait until a flush has taken the queued writes (await releases the lock meanwhile)
+    private void awaitRoom() throws InterruptedException, TimeoutException {
+        long remaining = maxWaitNanos;
+        while (pending() + inFlight >= maxPending) {
+            if (remaining <= 0)
+                throw new TimeoutException("write-behind queue still full after " +
+                        TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + " ms");
+            requestFlush();
+            remaining = notFull.awaitNanos(remaining);
+            checkOpen();
+        }
+    }
+
+    private void queued() {
+        queuedWrites.increment();
+        if (pending() >= batchThreshold)
+            requestFlush();
+    }
+
+    private void requestFlush() {
+        if (!flushRequested && !closed) {
+            flushRequested = true;
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            writePending();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "write-behind flush failed, the writes stay queued", e);
+        }
+    }
+
+    // runs on the flusher thread only
+    private void writePending() throws Exception {
+        Map<Integer, T> inserts;
+        Map<Integer, T> updates;
+        lock.lock();
+        try {
+            flushRequested = false;
+            if (pending() == 0)
+                return;
+            inserts = this.inserts;
+            updates = this.updates;
+            this.inserts = new LinkedHashMap<>();
+            this.updates = new LinkedHashMap<>();
+            inFlight = inserts.size() + updates.size();
+        } finally {
+            lock.unlock();
+        }
+
+        List<Exception> failures = new ArrayList<>();
+        Map<Integer, T> failedInserts;
+        Map<Integer, T> failedUpdates;
+        try {
+            failedInserts = write(inserts, true, failures);
+            failedUpdates = write(updates, false, failures);
+            requeue(failedInserts, failedUpdates);
+        } finally {
+            // room is only made once the writes are done, so failed ones that come back cannot pile up
+            lock.lock();
+            try {
+                inFlight = 0;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (failedInserts.isEmpty() && failedUpdates.isEmpty())
+            return;
+        Exception failure = failures.get(0);
+        for (int i = 1; i < failures.size(); i++)
+            failure.addSuppressed(failures.get(i));
+        throw failure;
+    }
+
+    // write queued inserts or updates in one batch. when it fails, the rows are written one at a time so
+    // the others still go through; returns the rows to queue again and adds the failures to `failures`.
+    private Map<Integer, T> write(Map<Integer, T> writes, boolean insert, List<Exception> failures) {
+        if (writes.isEmpty())
+            return writes;
+        try {
+            if (insert)
+                entityManager.insertAll(writes.values());
+            else
+                entityManager.updateAll(writes.values());
+            writtenRows.add(writes.size());
+            attempts.keySet().removeAll(writes.keySet());
+            return Map.of();
+        } catch (Exception e) {
+            if (isConnectionFailure(e)) {
+                failures.add(e);
+                return writes; // no row's fault, try them all again on the next flush
+            }
+        }
+        Map<Integer, T> failed = new LinkedHashMap<>();
+        boolean unreachable = false;
+        for (Map.Entry<Integer, T> write : writes.entrySet()) {
+            int id = write.getKey();
+            T entity = write.getValue();
+            if (unreachable) {
+                failed.put(id, entity);
+                continue;
+            }
+            try {
+                if (insert)
+                    entityManager.insert(entity);
+                else
+                    entityManager.update(entity);
+                writtenRows.increment();
+                attempts.remove(id);
+            } catch (Exception e) {
+                if (isConnectionFailure(e)) {
+                    unreachable = true;
+                    failures.add(e);
+                    failed.put(id, entity);
+                    continue;
+                }
+                int attempt = attempts.merge(id, 1, Integer::sum);
+                if (isRefused(e) || attempt >= maxAttempts) {
+                    attempts.remove(id);
+                    dropped(id, entity, e);
+                } else {
+                    failures.add(e);
+                    failed.put(id, entity);
+                }
+            }
+        }
+        return failed;
+    }
+
+    // report a write that is given up on. the cache stops serving the entity, unless a newer write
+    // of the same id is queued (the cache holds that one).
+    private void dropped(int id, T entity, Exception cause) {
+        droppedWrites.increment();
+        lock.lock();
+        try {
+            Cache<Integer, T> cache = entityManager.cache();
+            if (cache != null && !inserts.containsKey(id) && !updates.containsKey(id))
+                cache.invalidate(id);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            failureListener.writeFailed(entity, cause);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "write-behind failure listener failed", e);
+        }
+    }
+
+    // put back the writes of a failed flush, unless a newer write of the same id was queued meanwhile.
+    // only rows that may still succeed come back here, and their insert was rolled back, so a newer
+    // update of such a row becomes the insert.
+    private void requeue(Map<Integer, T> inserts, Map<Integer, T> updates) {
+        lock.lock();
+        try {
+            inserts.forEach((id, entity) -> {
+                T newer = this.updates.remove(id);
+                this.inserts.putIfAbsent(id, newer != null ? newer : entity);
+            });
+            updates.forEach((id, entity) -> {
+                if (!this.inserts.containsKey(id))
+                    this.updates.putIfAbsent(id, entity);
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the database or the pool could not be reached: every row would fail the same way
+    private static boolean isConnectionFailure(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+                    || e instanceof SQLRecoverableException)
+                return true;
+        }
+        return false;
+    }
+
+    // the database refused the row itself, e.g. a duplicate key: trying again cannot help
+    private static boolean isRefused(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof SQLNonTransientException)
+                return true;
+        }
+        return false;
+    }
+}
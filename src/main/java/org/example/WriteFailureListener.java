@@ -0,0 +1,8 @@
+package org.example;
+
+// told about a queued write that WriteBehindWriter gave up on, because the database refused the row
+// or it kept failing. the write is lost; the entity is no longer served from the cache.
+@FunctionalInterface
+public interface WriteFailureListener<T> {
+    void writeFailed(T entity, Exception cause);
+}